@@ -0,0 +1,83 @@
+/*
+ * Copyright 2009 Hao Nguyen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwt.g2d.tetris.client;
+
+/**
+ * Plays a game of tetris by moving each piece to the reachable placement 
+ * that the {@link Evaluator} scores best.
+ */
+public class Bot {
+	private final Evaluator evaluator;
+	private PlacementSearch search;
+	private int[] moves;
+	
+	public Bot(Evaluator evaluator) {
+		this.evaluator = evaluator;
+	}
+	
+	/**
+	 * Moves the current piece of the game to the best placement and drops it.
+	 * 
+	 * @param game the game whose current piece is to be played.
+	 * @return false if there is no current piece or no valid placement.
+	 */
+	public boolean play(TetrisGame game) {
+		if (!findBestPlacement(game)) {
+			return false;
+		}
+		int numMoves = search.getBestPath(moves);
+		for (int i = 0; i < numMoves; i++) {
+			switch (moves[i]) {
+			case MoveGenerator.MOVE_LEFT:
+				game.move(0, -1);
+				break;
+			case MoveGenerator.MOVE_RIGHT:
+				game.move(0, 1);
+				break;
+			case MoveGenerator.MOVE_DOWN:
+				game.move(1, 0);
+				break;
+			case MoveGenerator.MOVE_ROTATE:
+				game.rotate();
+				break;
+			}
+		}
+		game.hardDrop();
+		return true;
+	}
+	
+	/**
+	 * Gets the search of the last placement found.
+	 */
+	public PlacementSearch getSearch() {
+		return search;
+	}
+	
+	/**
+	 * Searches every placement reachable by the current piece of the game.
+	 * 
+	 * @return true if a placement was found.
+	 */
+	public boolean findBestPlacement(TetrisGame game) {
+		if (search == null) {
+			TetrisMatrix matrix = game.getMatrix();
+			search = new PlacementSearch(evaluator, matrix.getNumRows(), 
+					matrix.getNumCols());
+			moves = new int[search.getMaxMoves()];
+		}
+		return search.start(game) && search.run();
+	}
+}
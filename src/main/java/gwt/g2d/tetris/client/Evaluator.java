@@ -0,0 +1,97 @@
+/*
+ * Copyright 2009 Hao Nguyen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwt.g2d.tetris.client;
+
+/**
+ * Scores a tetris matrix as a weighted sum of features, higher is better.
+ * The features are the aggregate height of the columns, the number of holes,
+ * the bumpiness (sum of the height differences of adjacent columns) and the
+ * number of rows cleared by the last placement.
+ */
+public class Evaluator {
+	public static final int HEIGHT = 0, HOLES = 1, BUMPINESS = 2, 
+			ROWS_CLEARED = 3;
+	public static final int NUM_FEATURES = 4;
+	private static final double[] DEFAULT_WEIGHTS = new double[] {
+			-0.510066, -0.35663, -0.184483, 0.760666 };
+	
+	private final double[] weights;
+	
+	/**
+	 * Creates an evaluator with hand-tuned default weights.
+	 */
+	public Evaluator() {
+		this(DEFAULT_WEIGHTS);
+	}
+	
+	/**
+	 * Creates an evaluator with the given weights.
+	 * 
+	 * @param weights the weight of each feature, indexed by HEIGHT, HOLES,
+	 * 				BUMPINESS and ROWS_CLEARED.
+	 */
+	public Evaluator(double[] weights) {
+		if (weights.length != NUM_FEATURES) {
+			throw new IllegalArgumentException("Expected " + NUM_FEATURES 
+					+ " weights but got " + weights.length);
+		}
+		this.weights = new double[NUM_FEATURES];
+		System.arraycopy(weights, 0, this.weights, 0, NUM_FEATURES);
+	}
+	
+	/**
+	 * Gets the weight of the given feature.
+	 */
+	public double getWeight(int feature) {
+		return weights[feature];
+	}
+	
+	/**
+	 * Scores the given matrix.
+	 * 
+	 * @param matrix the matrix after the placement and clearing of rows.
+	 * @param rowsCleared the number of rows cleared by the placement.
+	 * @return the score of the matrix, higher is better.
+	 */
+	public double evaluate(TetrisMatrix matrix, int rowsCleared) {
+		int numRows = matrix.getNumRows();
+		int topRow = matrix.getTopRow();
+		int aggregateHeight = 0, holes = 0, bumpiness = 0;
+		int prevHeight = -1;
+		for (int c = 0; c < matrix.getNumCols(); c++) {
+			int colMask = 1 << c;
+			int r = topRow;
+			while (r < numRows && (matrix.getRowMask(r) & colMask) == 0) {
+				r++;
+			}
+			int height = numRows - r;
+			for (; r < numRows; r++) {
+				if ((matrix.getRowMask(r) & colMask) == 0) {
+					holes++;
+				}
+			}
+			aggregateHeight += height;
+			if (prevHeight >= 0) {
+				bumpiness += Math.abs(height - prevHeight);
+			}
+			prevHeight = height;
+		}
+		return weights[HEIGHT] * aggregateHeight
+				+ weights[HOLES] * holes
+				+ weights[BUMPINESS] * bumpiness
+				+ weights[ROWS_CLEARED] * rowsCleared;
+	}
+}
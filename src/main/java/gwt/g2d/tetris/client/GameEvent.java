@@ -0,0 +1,60 @@
+/*
+ * Copyright 2009 Hao Nguyen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwt.g2d.tetris.client;
+
+/**
+ * The types of events emitted by a {@link TetrisGame} to its 
+ * {@link TetrisGame.EventSink}, and the meaning of their arguments.
+ */
+public final class GameEvent {
+	/** A piece spawned: piece state index, row, column. */
+	public static final int SPAWN = 1;
+	/** A piece locked: piece state index, row, column. */
+	public static final int LOCK = 2;
+	/** Rows were cleared: rows cleared, total rows cleared, unused. */
+	public static final int CLEAR = 3;
+	/** The level changed: level, unused, unused. */
+	public static final int LEVEL = 4;
+	/** A piece spawned on top of the blocks: unused, unused, unused. */
+	public static final int GAME_OVER = 5;
+	/** The game was restarted: level offset, unused, unused. */
+	public static final int RESET = 6;
+	
+	private GameEvent() {
+	}
+	
+	/**
+	 * Gets the name of the given event type.
+	 */
+	public static String getName(int type) {
+		switch (type) {
+		case SPAWN:
+			return "spawn";
+		case LOCK:
+			return "lock";
+		case CLEAR:
+			return "clear";
+		case LEVEL:
+			return "level";
+		case GAME_OVER:
+			return "gameOver";
+		case RESET:
+			return "reset";
+		default:
+			return "unknown";
+		}
+	}
+}
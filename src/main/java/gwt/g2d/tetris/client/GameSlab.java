@@ -0,0 +1,330 @@
+/*
+ * Copyright 2009 Hao Nguyen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwt.g2d.tetris.client;
+
+/**
+ * Stores many games of tetris packed into a single int array, so that idle
+ * or spectated games take a few hundred bytes each and no objects.
+ * 
+ * Each game occupies a fixed stride of the array, indexed by its id: the 
+ * rows of the matrix as bitmasks of occupied columns, the rows of the matrix
+ * as 3 bits per column for the type of block, and the state of the game
+ * (pieces, position, level, rows cleared, gravity counter...) as ints. A
+ * game is read and written through a reusable {@link View}.
+ */
+public class GameSlab {
+	private static final int BITS_PER_BLOCK = 3;
+	private static final BlockType[] BLOCK_TYPES = BlockType.values();
+	// Offsets of the fields, after the two planes of rows.
+	private static final int CURR_PIECE = 0, NEXT_PIECE = 1, CURR_ROW = 2, 
+			CURR_COL = 3, LEVEL = 4, LEVEL_OFFSET = 5, TOTAL_ROWS_CLEARED = 6, 
+			TICKS = 7, FRAME = 8, NUM_PIECES = 9, RANDOM_STATE = 10, FLAGS = 11;
+	private static final int NUM_FIELDS = 12;
+	private static final int FLAG_GAME_OVER = 1;
+	private static final int NO_PIECE = -1;
+	
+	private final int numRows, numCols;
+	private final int stride, fieldsOffset;
+	private final int capacity;
+	private final int[] data;
+	// Stack of the free game ids.
+	private final int[] freeIds;
+	private int numFree;
+	// One bit per game id, set while the game is allocated.
+	private final int[] allocatedBits;
+	
+	public GameSlab(int capacity, int numRows, int numCols) {
+		if (numCols * BITS_PER_BLOCK > 32) {
+			throw new IllegalArgumentException("Too many columns: " + numCols);
+		}
+		this.capacity = capacity;
+		this.numRows = numRows;
+		this.numCols = numCols;
+		fieldsOffset = 2 * numRows;
+		stride = fieldsOffset + NUM_FIELDS;
+		data = new int[capacity * stride];
+		freeIds = new int[capacity];
+		for (int i = 0; i < capacity; i++) {
+			freeIds[i] = capacity - 1 - i;
+		}
+		numFree = capacity;
+		allocatedBits = new int[(capacity + 31) >>> 5];
+	}
+	
+	/**
+	 * Gets the number of games the slab can hold.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+	
+	/**
+	 * Gets the number of games allocated.
+	 */
+	public int size() {
+		return capacity - numFree;
+	}
+	
+	/**
+	 * Gets the number of bytes used per game.
+	 */
+	public int getBytesPerGame() {
+		return stride * 4;
+	}
+	
+	/**
+	 * Allocates an empty game.
+	 * 
+	 * @return the id of the game, or -1 if the slab is full.
+	 */
+	public int allocate() {
+		if (numFree == 0) {
+			return -1;
+		}
+		int id = freeIds[--numFree];
+		allocatedBits[id >>> 5] |= 1 << id;
+		int base = id * stride;
+		for (int i = base; i < base + stride; i++) {
+			data[i] = 0;
+		}
+		data[base + fieldsOffset + CURR_PIECE] = NO_PIECE;
+		data[base + fieldsOffset + NEXT_PIECE] = NO_PIECE;
+		return id;
+	}
+	
+	/**
+	 * Frees the given game so that its id can be reused.
+	 * 
+	 * @throws IllegalArgumentException if the game is not allocated, e.g., it
+	 * 				has already been freed.
+	 */
+	public void free(int id) {
+		if (!isAllocated(id)) {
+			throw new IllegalArgumentException("Game not allocated: " + id);
+		}
+		allocatedBits[id >>> 5] &= ~(1 << id);
+		freeIds[numFree++] = id;
+	}
+	
+	/**
+	 * Whether the given id is that of an allocated game.
+	 */
+	public boolean isAllocated(int id) {
+		return id >= 0 && id < capacity 
+				&& (allocatedBits[id >>> 5] & (1 << id)) != 0;
+	}
+	
+	/**
+	 * Creates a view, which can be moved to any game of this slab.
+	 */
+	public View newView() {
+		return new View();
+	}
+	
+	/**
+	 * A flyweight over one game of the slab. Views are meant to be created
+	 * once and moved from game to game with {@link #moveTo}.
+	 */
+	public final class View {
+		private int base, fields;
+		
+		private View() {
+		}
+		
+		/**
+		 * Points this view at the given game.
+		 * 
+		 * @return this view.
+		 */
+		public View moveTo(int id) {
+			base = id * stride;
+			fields = base + fieldsOffset;
+			return this;
+		}
+		
+		/**
+		 * Gets the occupied columns of the given row as a bitmask.
+		 */
+		public int getRowMask(int row) {
+			return data[base + row];
+		}
+		
+		/**
+		 * Gets the type of block at the given cell, or null if it is empty.
+		 */
+		public BlockType getBlock(int row, int col) {
+			int code = (data[base + numRows + row] >>> (col * BITS_PER_BLOCK)) & 7;
+			return (code == 0) ? null : BLOCK_TYPES[code - 1];
+		}
+		
+		/**
+		 * Sets the type of block at the given cell.
+		 */
+		public void setBlock(int row, int col, BlockType type) {
+			int shift = col * BITS_PER_BLOCK;
+			int typeRow = base + numRows + row;
+			data[typeRow] &= ~(7 << shift);
+			if (type == null) {
+				data[base + row] &= ~(1 << col);
+			} else {
+				data[typeRow] |= (type.ordinal() + 1) << shift;
+				data[base + row] |= 1 << col;
+			}
+		}
+		
+		/**
+		 * Gets the current piece, or null if there is none.
+		 */
+		public PieceState getCurrentPiece() {
+			return getPiece(CURR_PIECE);
+		}
+		
+		/**
+		 * Gets the next piece, or null if there is none.
+		 */
+		public PieceState getNextPiece() {
+			return getPiece(NEXT_PIECE);
+		}
+		
+		/**
+		 * Gets the top-left row of the current piece.
+		 */
+		public int getCurrentRow() {
+			return data[fields + CURR_ROW];
+		}
+		
+		/**
+		 * Gets the top-left column of the current piece.
+		 */
+		public int getCurrentCol() {
+			return data[fields + CURR_COL];
+		}
+		
+		/**
+		 * Gets the current level.
+		 */
+		public int getLevel() {
+			return data[fields + LEVEL];
+		}
+		
+		/**
+		 * Gets the level the game starts at.
+		 */
+		public int getLevelOffset() {
+			return data[fields + LEVEL_OFFSET];
+		}
+		
+		/**
+		 * Gets the total number of rows cleared.
+		 */
+		public int getTotalRowsCleared() {
+			return data[fields + TOTAL_ROWS_CLEARED];
+		}
+		
+		/**
+		 * Gets the gravity counter, i.e., the part of a row the piece has fallen 
+		 * since it last moved down, in units of 
+		 * 1 / {@link TetrisGame#getGravityTicks}(level).
+		 */
+		public int getTicks() {
+			return data[fields + TICKS];
+		}
+		
+		/**
+		 * Gets the number of frames the game has been updated for.
+		 */
+		public int getFrame() {
+			return data[fields + FRAME];
+		}
+		
+		/**
+		 * Gets the number of pieces spawned so far.
+		 */
+		public int getNumPieces() {
+			return data[fields + NUM_PIECES];
+		}
+		
+		/**
+		 * Gets the state of the random generator of the pieces.
+		 */
+		public int getRandomState() {
+			return data[fields + RANDOM_STATE];
+		}
+		
+		/**
+		 * Whether a piece has spawned on top of the blocks.
+		 */
+		public boolean isGameOver() {
+			return (data[fields + FLAGS] & FLAG_GAME_OVER) != 0;
+		}
+		
+		/**
+		 * Copies the state of the given game into this slot.
+		 */
+		public void store(TetrisGame game) {
+			TetrisMatrix matrix = game.getMatrix();
+			int topRow = matrix.getTopRow();
+			for (int r = 0; r < numRows; r++) {
+				int mask = (r < topRow) ? 0 : matrix.getRowMask(r), types = 0;
+				for (int bits = mask; bits != 0; bits &= bits - 1) {
+					int c = Integer.numberOfTrailingZeros(bits);
+					types |= (matrix.getBlock(r, c).ordinal() + 1) 
+							<< (c * BITS_PER_BLOCK);
+				}
+				data[base + r] = mask;
+				data[base + numRows + r] = types;
+			}
+			setPiece(CURR_PIECE, game.getCurrentPiece());
+			setPiece(NEXT_PIECE, game.getNextPiece());
+			data[fields + CURR_ROW] = game.getCurrentRow();
+			data[fields + CURR_COL] = game.getCurrentCol();
+			data[fields + LEVEL] = game.getLevel();
+			data[fields + LEVEL_OFFSET] = game.getLevelOffset();
+			data[fields + TOTAL_ROWS_CLEARED] = game.getTotalRowsCleared();
+			data[fields + TICKS] = game.getTicks();
+			data[fields + FRAME] = game.getFrame();
+			data[fields + NUM_PIECES] = game.getNumPieces();
+			data[fields + RANDOM_STATE] = game.getRandomState();
+			data[fields + FLAGS] = game.isGameOver() ? FLAG_GAME_OVER : 0;
+		}
+		
+		/**
+		 * Copies this slot into the given game, which must have the same
+		 * dimensions. The listener, event sink and rotation system of the 
+		 * game are kept.
+		 */
+		public void load(TetrisGame game) {
+			TetrisMatrix matrix = game.getMatrix();
+			matrix.clear();
+			for (int r = 0; r < numRows; r++) {
+				for (int mask = data[base + r]; mask != 0; mask &= mask - 1) {
+					int c = Integer.numberOfTrailingZeros(mask);
+					matrix.setBlock(r, c, getBlock(r, c));
+				}
+			}
+			game.restore(this);
+		}
+		
+		private PieceState getPiece(int field) {
+			int index = data[fields + field];
+			return (index == NO_PIECE) ? null : PieceState.getState(index);
+		}
+		
+		private void setPiece(int field, PieceState piece) {
+			data[fields + field] = (piece == null) ? NO_PIECE : piece.getIndex();
+		}
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2009 Hao Nguyen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwt.g2d.tetris.client;
+
+import com.google.gwt.core.client.Duration;
+import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.core.client.Scheduler.RepeatingCommand;
+
+/**
+ * Suggests the best placement for the current piece without ever making the
+ * game loop wait.
+ * 
+ * Each request snapshots the matrix and searches it, generating the moves 
+ * included, in small time slices that give the frame back to the browser in
+ * between. The best placement so far is published every time it improves, 
+ * until every placement has been evaluated or the time budget of the 
+ * request runs out. 
+ * 
+ * A request after the piece has fallen, moved or rotated restarts the 
+ * search from where the piece now is, so that only placements it can still
+ * reach are suggested. The previous hint is evaluated first, and is thus 
+ * published again at once if it is still reachable. A request for a new 
+ * piece or matrix, or {@link #cancel}, discards the search in progress.
+ */
+public class HintEngine {
+	private static final double SLICE_MILLIS = 4;
+	private static final int SLICE_DELAY_MILLIS = 1;
+	private static final int PLACEMENTS_PER_CHECK = 4;
+	
+	/**
+	 * Receives the hints.
+	 */
+	public interface Listener {
+		/**
+		 * Called when a better placement has been found for the current piece.
+		 * 
+		 * @param piece the piece state of the placement.
+		 * @param row the top-left row of the placement.
+		 * @param col the top-left column of the placement.
+		 * @param isFinal whether the search of this request is over.
+		 */
+		void onHint(PieceState piece, int row, int col, boolean isFinal);
+	}
+	
+	private final PlacementSearch search;
+	private final double budgetMillis;
+	private final Listener listener;
+	// Runs one slice of the search, scheduled again until the search is over.
+	private final RepeatingCommand slice = new RepeatingCommand() {
+		@Override
+		public boolean execute() {
+			if (!searching) {
+				scheduled = false;
+				return false;
+			}
+			double now = Duration.currentTimeMillis();
+			double sliceEnd = Math.min(deadline, now + SLICE_MILLIS);
+			boolean improved = false;
+			do {
+				improved |= search.step(PLACEMENTS_PER_CHECK);
+				now = Duration.currentTimeMillis();
+			} while (!search.isDone() && now < sliceEnd);
+			boolean isFinal = search.isDone() || now >= deadline;
+			if ((improved || isFinal) && search.hasBestPlacement()) {
+				listener.onHint(search.getBestPiece(), search.getBestRow(), 
+						search.getBestCol(), isFinal);
+			}
+			if (isFinal) {
+				searching = false;
+				scheduled = false;
+			}
+			return !isFinal;
+		}
+	};
+	// Whether the search was started for a piece and not cancelled since.
+	private boolean started;
+	private boolean searching, scheduled;
+	private double deadline;
+	
+	/**
+	 * @param evaluator scores the placements.
+	 * @param budgetMillis the maximum time spent on a request.
+	 * @param listener receives the hints.
+	 */
+	public HintEngine(Evaluator evaluator, double budgetMillis, Listener listener) {
+		this.search = new PlacementSearch(evaluator, TetrisGame.DEFAULT_NUM_ROWS,
+				TetrisGame.DEFAULT_NUM_COLS);
+		this.budgetMillis = budgetMillis;
+		this.listener = listener;
+	}
+	
+	/**
+	 * Starts searching a hint for the current piece of the game where it is,
+	 * replacing the search in progress if any, unless the search is already
+	 * from this state of the game.
+	 * 
+	 * @return true if the previous hint is for another piece or matrix.
+	 */
+	public boolean request(TetrisGame game) {
+		if (started && search.isStartedAt(game)) {
+			return false;
+		}
+		boolean samePiece = started && search.isStartedFor(game);
+		started = samePiece ? search.restart(game) : search.start(game);
+		searching = started;
+		if (searching) {
+			deadline = Duration.currentTimeMillis() + budgetMillis;
+			if (!scheduled) {
+				scheduled = true;
+				Scheduler.get().scheduleFixedDelay(slice, SLICE_DELAY_MILLIS);
+			}
+		}
+		return !samePiece;
+	}
+	
+	/**
+	 * Stops the search in progress, if any.
+	 */
+	public void cancel() {
+		started = false;
+		searching = false;
+	}
+}
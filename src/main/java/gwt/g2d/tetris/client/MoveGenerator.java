@@ -0,0 +1,470 @@
+/*
+ * Copyright 2009 Hao Nguyen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwt.g2d.tetris.client;
+
+/**
+ * Generates every placement that a piece can reach with the inputs of the 
+ * game (left, right, down and rotate), including tucks under overhangs and 
+ * rotations at the bottom, with the kicks of the given rotation system.
+ * 
+ * The search is a breadth-first search over (rotation, row, column) states. 
+ * The positions where each rotation fits are computed up front with 
+ * {@link TetrisMatrix#findValidPositions}, so that checking a state is a
+ * single bit test, and all the buffers are allocated once so that no memory
+ * is allocated per searched state.
+ * 
+ * When only the placements are needed and not the inputs that reach them,
+ * {@link #generatePlacements} finds the same ones by flood filling whole 
+ * rows of columns at once instead of visiting the states one by one.
+ */
+public class MoveGenerator {
+	public static final int MOVE_LEFT = 0, MOVE_RIGHT = 1, MOVE_DOWN = 2,
+			MOVE_ROTATE = 3;
+	// A piece may stick out of the matrix by up to this many empty rows/cols.
+	private static final int PAD = TetrisMatrix.POSITION_PAD;
+	
+	private final int numRows, numCols;
+	private final int rowSpan, colSpan, rotationSpan;
+	// The valid columns of each row for each rotation of the searched piece.
+	private final int[][] validCols;
+	private final int[] visited, placed;
+	// The reachable and the locking columns of each row for each rotation.
+	private final int[][] reachable, landed;
+	// The columns of each row that no kick has been found for yet.
+	private final int[] unkicked;
+	private final int[] queue, parents;
+	private final byte[] parentMoves;
+	
+	private RotationSystem rotationSystem;
+	// The piece being searched.
+	private PieceDefinition pieceDefinition;
+	private final int[] canonicalRotations = new int[PieceDefinition.TYPES_PER_PIECE];
+	private int numNodes;
+
+	public MoveGenerator(int numRows, int numCols, RotationSystem rotationSystem) {
+		this.numRows = numRows;
+		this.numCols = numCols;
+		this.rotationSystem = rotationSystem;
+		rowSpan = numRows + PAD;
+		colSpan = numCols + PAD;
+		rotationSpan = rowSpan * colSpan;
+		validCols = new int[PieceDefinition.TYPES_PER_PIECE][rowSpan];
+		reachable = new int[PieceDefinition.TYPES_PER_PIECE][rowSpan];
+		landed = new int[PieceDefinition.TYPES_PER_PIECE][rowSpan];
+		unkicked = new int[rowSpan];
+		int numStates = PieceDefinition.TYPES_PER_PIECE * rotationSpan;
+		visited = new int[(numStates + 31) >> 5];
+		placed = new int[(numStates + 31) >> 5];
+		queue = new int[numStates];
+		parents = new int[numStates];
+		parentMoves = new byte[numStates];
+	}
+	
+	/**
+	 * Sets the rotation system whose kicks are used by the rotate input.
+	 */
+	public void setRotationSystem(RotationSystem rotationSystem) {
+		this.rotationSystem = rotationSystem;
+	}
+	
+	/**
+	 * Gets the maximum number of placements that {@link #generate} may return,
+	 * which is the required length of its output array.
+	 */
+	public int getMaxPlacements() {
+		return queue.length;
+	}
+	
+	/**
+	 * Gets the number of states visited by the last breadth-first search.
+	 */
+	public int getNumNodes() {
+		return numNodes;
+	}
+	
+	/**
+	 * Generates the placements reachable by the current piece of the matrix.
+	 * The current piece must have been removed from the matrix.
+	 * 
+	 * @param matrix the matrix without the current piece.
+	 * @param piece the piece to place.
+	 * @param row the current top-left row of the piece.
+	 * @param col the current top-left column of the piece.
+	 * @param placements receives the placements, see {@link #getRotation},
+	 * 				{@link #getRow} and {@link #getCol}.
+	 * @return the number of placements.
+	 */
+	public int generate(TetrisMatrix matrix, PieceState piece, int row, int col, 
+			int[] placements) {
+		PieceDefinition pieceDefinition = piece.getPieceDefinition();
+		for (int rotation = 0; rotation < PieceDefinition.TYPES_PER_PIECE; 
+				rotation++) {
+			matrix.findPositions(pieceDefinition.getState(rotation), row, 
+					validCols[rotation], null);
+		}
+		return search(piece, row, col, placements);
+	}
+	
+	/**
+	 * Generates the placements reachable by a piece in a matrix given as row
+	 * bitmasks, where bit c of rows[r] is set if the cell (r, c) is occupied.
+	 * 
+	 * @param rows the row bitmasks of the matrix.
+	 * @param piece the piece to place.
+	 * @param row the current top-left row of the piece.
+	 * @param col the current top-left column of the piece.
+	 * @param placements receives the placements.
+	 * @return the number of placements.
+	 */
+	public int generate(int[] rows, PieceState piece, int row, int col, 
+			int[] placements) {
+		PieceDefinition pieceDefinition = piece.getPieceDefinition();
+		for (int rotation = 0; rotation < PieceDefinition.TYPES_PER_PIECE; 
+				rotation++) {
+			TetrisMatrix.findValidPositions(rows, numRows, numCols, 
+					pieceDefinition.getState(rotation), validCols[rotation]);
+		}
+		return search(piece, row, col, placements);
+	}
+	
+	/**
+	 * Generates the same placements as {@link #generate(int[], PieceState, 
+	 * int, int, int[])}, without the inputs that reach them: the reachable 
+	 * columns of every row are spread down, sideways and through the kicks 
+	 * as bitmasks until nothing changes. The placements are ordered by 
+	 * rotation, row and column, and {@link #getPath} does not apply to them.
+	 * 
+	 * @param rows the row bitmasks of the matrix.
+	 * @param piece the piece to place.
+	 * @param row the current top-left row of the piece.
+	 * @param col the current top-left column of the piece.
+	 * @param placements receives the placements.
+	 * @return the number of placements.
+	 */
+	public int generatePlacements(int[] rows, PieceState piece, int row, 
+			int col, int[] placements) {
+		PieceDefinition pieceDefinition = piece.getPieceDefinition();
+		for (int rotation = 0; rotation < PieceDefinition.TYPES_PER_PIECE; 
+				rotation++) {
+			TetrisMatrix.findValidPositions(rows, numRows, numCols, 
+					pieceDefinition.getState(rotation), validCols[rotation]);
+			clear(reachable[rotation]);
+			clear(landed[rotation]);
+		}
+		setPieceDefinition(pieceDefinition);
+		if (!fits(piece.getRotation(), row, col)) {
+			return 0;
+		}
+		reachable[piece.getRotation()][row + PAD] = 1 << (col + PAD);
+		// The rotations whose reachable columns have changed since they were 
+		// last spread.
+		int changed = 1 << piece.getRotation();
+		while (changed != 0) {
+			int rotation = Integer.numberOfTrailingZeros(changed);
+			changed &= changed - 1;
+			spread(rotation);
+			changed |= spreadRotation(rotation);
+		}
+		
+		// Identical rotations of a piece lock into the same cells.
+		for (int rotation = 0; rotation < PieceDefinition.TYPES_PER_PIECE; 
+				rotation++) {
+			int[] valid = validCols[rotation], reach = reachable[rotation];
+			int[] locked = landed[canonicalRotations[rotation]];
+			for (int i = 0; i < rowSpan; i++) {
+				int below = (i + 1 < rowSpan) ? valid[i + 1] : 0;
+				locked[i] |= reach[i] & ~below;
+			}
+		}
+		int numPlacements = 0;
+		for (int rotation = 0; rotation < PieceDefinition.TYPES_PER_PIECE; 
+				rotation++) {
+			int[] locked = landed[rotation];
+			for (int i = 0; i < rowSpan; i++) {
+				for (int cols = locked[i]; cols != 0; cols &= cols - 1) {
+					placements[numPlacements++] = rotation * rotationSpan 
+							+ i * colSpan + Integer.numberOfTrailingZeros(cols);
+				}
+			}
+		}
+		return numPlacements;
+	}
+	
+	/**
+	 * Gets the rotation of the given placement.
+	 */
+	public int getRotation(int placement) {
+		return placement / rotationSpan;
+	}
+	
+	/**
+	 * Gets the top-left row of the given placement.
+	 */
+	public int getRow(int placement) {
+		return (placement % rotationSpan) / colSpan - PAD;
+	}
+	
+	/**
+	 * Gets the top-left column of the given placement.
+	 */
+	public int getCol(int placement) {
+		return placement % colSpan - PAD;
+	}
+	
+	/**
+	 * Gets the inputs that bring the piece from its starting state to the
+	 * given placement of the last search.
+	 * 
+	 * @param placement a placement returned by the last search.
+	 * @param moves receives the MOVE_* inputs, in order.
+	 * @return the number of inputs.
+	 */
+	public int getPath(int placement, int[] moves) {
+		int length = 0;
+		for (int s = placement; parents[s] != s; s = parents[s]) {
+			length++;
+		}
+		for (int s = placement, i = length - 1; i >= 0; s = parents[s], i--) {
+			moves[i] = parentMoves[s];
+		}
+		return length;
+	}
+	
+	/**
+	 * Breadth-first search from the given state.
+	 */
+	private int search(PieceState piece, int row, int col, int[] placements) {
+		setPieceDefinition(piece.getPieceDefinition());
+		int rotation = piece.getRotation();
+		clear(visited);
+		clear(placed);
+		numNodes = 0;
+		if (!fits(rotation, row, col)) {
+			return 0;
+		}
+		int numPlacements = 0;
+		int head = 0, tail = 0;
+		int start = getState(rotation, row, col);
+		visit(start, start, 0);
+		queue[tail++] = start;
+		while (head < tail) {
+			int state = queue[head++];
+			numNodes++;
+			rotation = getRotation(state);
+			row = getRow(state);
+			col = getCol(state);
+			
+			if (fits(rotation, row + 1, col)) {
+				tail = enqueue(getState(rotation, row + 1, col), state, MOVE_DOWN, tail);
+			} else {
+				// Identical rotations of a piece lock into the same cells.
+				int canonical = getState(canonicalRotations[rotation], row, col);
+				if (!isSet(placed, canonical)) {
+					set(placed, canonical);
+					placements[numPlacements++] = state;
+				}
+			}
+			if (fits(rotation, row, col - 1)) {
+				tail = enqueue(getState(rotation, row, col - 1), state, MOVE_LEFT, tail);
+			}
+			if (fits(rotation, row, col + 1)) {
+				tail = enqueue(getState(rotation, row, col + 1), state, MOVE_RIGHT, tail);
+			}
+			tail = enqueueRotation(rotation, row, col, state, tail);
+		}
+		return numPlacements;
+	}
+	
+	/**
+	 * Enqueues the state reached by the rotate input, trying the kicks of the
+	 * rotation system in order.
+	 */
+	private int enqueueRotation(int rotation, int row, int col, int parent, 
+			int tail) {
+		PieceState from = pieceDefinition.getState(rotation);
+		int nextRotation = from.rotateRight().getRotation();
+		int numKicks = rotationSystem.getNumKicks(from, RotationSystem.CLOCKWISE);
+		for (int k = 0; k < numKicks; k++) {
+			int kickRow = row + rotationSystem.getKickRow(from, 
+					RotationSystem.CLOCKWISE, k);
+			int kickCol = col + rotationSystem.getKickCol(from, 
+					RotationSystem.CLOCKWISE, k);
+			if (fits(nextRotation, kickRow, kickCol)) {
+				return enqueue(getState(nextRotation, kickRow, kickCol), parent, 
+						MOVE_ROTATE, tail);
+			}
+		}
+		return tail;
+	}
+	
+	/**
+	 * Spreads the reachable columns of a rotation down and sideways, from the
+	 * top row to the bottom one.
+	 */
+	private void spread(int rotation) {
+		int[] valid = validCols[rotation], reach = reachable[rotation];
+		int above = 0;
+		for (int i = 0; i < rowSpan; i++) {
+			int cols = reach[i] | (above & valid[i]);
+			if (cols != 0) {
+				cols = fillRow(cols, valid[i]);
+				reach[i] = cols;
+			}
+			above = cols;
+		}
+	}
+	
+	/**
+	 * Gets the columns reachable by moving left and right from the given ones
+	 * through valid ones. The carry of the addition runs from each column up
+	 * to the end of its run of valid columns, and the run below it is filled
+	 * in steps of 1, 2, 4, 8 and 16 columns.
+	 */
+	private static int fillRow(int cols, int valid) {
+		int up = (((valid + cols) ^ valid) & valid) | cols;
+		int down = cols, through = valid;
+		down |= (down >>> 1) & through;
+		through &= through >>> 1;
+		down |= (down >>> 2) & through;
+		through &= through >>> 2;
+		down |= (down >>> 4) & through;
+		through &= through >>> 4;
+		down |= (down >>> 8) & through;
+		through &= through >>> 8;
+		down |= (down >>> 16) & through;
+		return up | down;
+	}
+	
+	/**
+	 * Spreads the reachable columns of a rotation through the rotate input:
+	 * each kick applies to the columns for which none of the earlier ones 
+	 * fits.
+	 * 
+	 * @return the bit of the rotated state if any of its columns was added, 
+	 * 				0 otherwise.
+	 */
+	private int spreadRotation(int rotation) {
+		PieceState from = pieceDefinition.getState(rotation);
+		int nextRotation = from.rotateRight().getRotation();
+		int[] nextValid = validCols[nextRotation];
+		int[] nextReach = reachable[nextRotation];
+		int numKicks = rotationSystem.getNumKicks(from, RotationSystem.CLOCKWISE);
+		System.arraycopy(reachable[rotation], 0, unkicked, 0, rowSpan);
+		int changed = 0;
+		for (int k = 0; k < numKicks; k++) {
+			int kickRow = rotationSystem.getKickRow(from, RotationSystem.CLOCKWISE, 
+					k);
+			int kickCol = rotationSystem.getKickCol(from, RotationSystem.CLOCKWISE, 
+					k);
+			int fromRow = Math.max(0, -kickRow);
+			int toRow = Math.min(rowSpan, rowSpan - kickRow);
+			for (int i = fromRow; i < toRow; i++) {
+				int cols = unkicked[i];
+				if (cols == 0) {
+					continue;
+				}
+				int valid = nextValid[i + kickRow];
+				// The columns from which the kick lands on a valid column.
+				int kicked = cols & ((kickCol >= 0) ? valid >>> kickCol 
+						: valid << -kickCol);
+				if (kicked == 0) {
+					continue;
+				}
+				unkicked[i] = cols & ~kicked;
+				int to = (kickCol >= 0) ? kicked << kickCol : kicked >>> -kickCol;
+				if ((nextReach[i + kickRow] | to) != nextReach[i + kickRow]) {
+					nextReach[i + kickRow] |= to;
+					changed = 1 << nextRotation;
+				}
+			}
+		}
+		return changed;
+	}
+	
+	private int enqueue(int state, int parent, int move, int tail) {
+		if (isSet(visited, state)) {
+			return tail;
+		}
+		visit(state, parent, move);
+		queue[tail] = state;
+		return tail + 1;
+	}
+	
+	private void visit(int state, int parent, int move) {
+		set(visited, state);
+		parents[state] = parent;
+		parentMoves[state] = (byte) move;
+	}
+	
+	/**
+	 * Checks whether the piece fits at the given state.
+	 */
+	private boolean fits(int rotation, int row, int col) {
+		if (row < -PAD || row >= numRows || col < -PAD || col >= numCols) {
+			return false;
+		}
+		return ((validCols[rotation][row + PAD] >>> (col + PAD)) & 1) != 0;
+	}
+	
+	private int getState(int rotation, int row, int col) {
+		return rotation * rotationSpan + (row + PAD) * colSpan + col + PAD;
+	}
+	
+	/**
+	 * Sets the piece to search, and finds which of its rotations are identical.
+	 */
+	private void setPieceDefinition(PieceDefinition pieceDefinition) {
+		if (this.pieceDefinition == pieceDefinition) {
+			return;
+		}
+		this.pieceDefinition = pieceDefinition;
+		for (int rotation = 0; rotation < PieceDefinition.TYPES_PER_PIECE; 
+				rotation++) {
+			canonicalRotations[rotation] = rotation;
+			for (int other = 0; other < rotation; other++) {
+				if (isSameRotation(pieceDefinition, rotation, other)) {
+					canonicalRotations[rotation] = other;
+					break;
+				}
+			}
+		}
+	}
+	
+	private static boolean isSameRotation(PieceDefinition pieceDefinition,
+			int rotation1, int rotation2) {
+		for (int r = 0; r < Piece.PIECE_SIZE; r++) {
+			if (pieceDefinition.getRowMask(rotation1, r) 
+					!= pieceDefinition.getRowMask(rotation2, r)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static void clear(int[] bits) {
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] = 0;
+		}
+	}
+	
+	private static boolean isSet(int[] bits, int index) {
+		return (bits[index >> 5] & (1 << (index & 31))) != 0;
+	}
+	
+	private static void set(int[] bits, int index) {
+		bits[index >> 5] |= 1 << (index & 31);
+	}
+}
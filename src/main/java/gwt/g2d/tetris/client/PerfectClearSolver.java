@@ -0,0 +1,481 @@
+/*
+ * Copyright 2009 Hao Nguyen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwt.g2d.tetris.client;
+
+/**
+ * Solves perfect-clear puzzles: finds placements for a known sequence of
+ * pieces that leave a given matrix completely empty once every piece has
+ * been placed.
+ * 
+ * The search is a depth-first search over the matrices as row bitmasks, 
+ * using {@link MoveGenerator#generatePlacements} so that only reachable 
+ * placements are tried. Matrices that have already failed with the remaining pieces are
+ * remembered in a {@link Table} of their hashes, and a matrix is pruned 
+ * without generating its placements when it cannot be cleared by the 
+ * remaining pieces:
+ * <ul>
+ * <li>the occupied and remaining cells must fill a whole number of rows, 
+ * which gives the height that can still be cleared,</li>
+ * <li>no cell may be above that height, since every row below an occupied
+ * one is occupied too and would need to be cleared as well,</li>
+ * <li>the difference between the empty cells of the even and the odd columns
+ * must be one that the remaining pieces can make up, since cleared rows have
+ * as many of both and a piece covers at most as many more cells of one 
+ * than of the other as its most uneven state: none for O, S and Z, which 
+ * are always even, 2 for J and L in any state and for the vertical T, which
+ * cover 3 cells of one and 1 of the other, and 4 for the vertical I,</li>
+ * <li>columns that are full up to that height split the matrix into parts 
+ * that no piece can span, each of which must have a multiple of 
+ * {@link Piece#PIECE_SIZE} empty cells, whose differences must add up to 
+ * one the remaining pieces can make up, and of which those one column wide 
+ * need enough I pieces.</li>
+ * </ul>
+ * The search only considers the rows that can still be cleared and the
+ * {@link Piece#PIECE_SIZE} rows above them, the pieces starting at the top
+ * of those rows.
+ * 
+ * A hash collision in the table can make the solver miss a solution, but
+ * never report a wrong one. All the buffers are allocated once.
+ */
+public class PerfectClearSolver {
+	private static final int CELLS_PER_PIECE = Piece.PIECE_SIZE;
+	private static final int DEFAULT_TABLE_BITS = 16;
+	
+	private final int numRows, numCols, fullRowMask, evenColMask;
+	private final int startRow, startCol;
+	private final RotationSystem rotationSystem;
+	// Move generators by number of rows searched, created when first needed.
+	private final MoveGenerator[] moveGenerators;
+	private final Table failedStates;
+	private final int[] expandedPlacements;
+	private MoveGenerator moveGenerator;
+	private int searchRows;
+	private PieceState[] pieces;
+	private int numPieces;
+	// Per depth buffers, grown when a longer sequence is solved.
+	private int[][] boards, placements;
+	private int[] maxImbalances, remainingI;
+	private long[] pieceHashes;
+	private PieceState[] solutionPieces;
+	private int[] solutionRows, solutionCols;
+	private long nodes;
+	private volatile boolean cancelled;
+	
+	public PerfectClearSolver(int numRows, int numCols, 
+			RotationSystem rotationSystem) {
+		this(numRows, numCols, rotationSystem, DEFAULT_TABLE_BITS);
+	}
+	
+	/**
+	 * Creates a solver whose table of failed matrices has 2^tableBits entries.
+	 */
+	public PerfectClearSolver(int numRows, int numCols, 
+			RotationSystem rotationSystem, int tableBits) {
+		this(numRows, numCols, rotationSystem, new Table(tableBits));
+	}
+	
+	/**
+	 * Creates a solver that remembers failed matrices in the given table, 
+	 * which may be shared with other solvers of the same size and rotation
+	 * system, also on other threads.
+	 */
+	public PerfectClearSolver(int numRows, int numCols, 
+			RotationSystem rotationSystem, Table table) {
+		this.numRows = numRows;
+		this.numCols = numCols;
+		this.rotationSystem = rotationSystem;
+		fullRowMask = (numCols == 32) ? -1 : (1 << numCols) - 1;
+		evenColMask = 0x55555555 & fullRowMask;
+		startRow = 0;
+		startCol = numCols / 2 - Piece.PIECE_SIZE / 2;
+		moveGenerators = new MoveGenerator[numRows + 1];
+		failedStates = table;
+		expandedPlacements = new int[getMoveGenerator(numRows).getMaxPlacements()];
+		ensureCapacity(0);
+	}
+	
+	/**
+	 * Searches for a perfect clear of the given matrix with all the pieces.
+	 * 
+	 * @param rows the row bitmasks of the matrix, which are not modified.
+	 * @param pieces the pieces to place, in order, in their spawn states.
+	 * @return true if a solution was found, see {@link #getSolutionPiece},
+	 * 				{@link #getSolutionRow} and {@link #getSolutionCol}.
+	 */
+	public boolean solve(int[] rows, PieceState[] pieces) {
+		return solve(rows, pieces, 0);
+	}
+	
+	/**
+	 * Searches for a perfect clear of the given matrix with the pieces from
+	 * firstPiece on, as if the pieces before it had already been placed. 
+	 * This lets the subtrees of a puzzle be searched separately.
+	 * 
+	 * @return true if a solution was found, in which case only the steps from
+	 * 				firstPiece on are set.
+	 */
+	public boolean solve(int[] rows, PieceState[] pieces, int firstPiece) {
+		setPieces(pieces);
+		nodes = 0;
+		searchRows = numRows;
+		int height = getClearHeight(rows, firstPiece);
+		if (height < 0) {
+			return false;
+		}
+		searchRows = Math.min(numRows, height + Piece.PIECE_SIZE);
+		int rowOffset = numRows - searchRows;
+		moveGenerator = getMoveGenerator(searchRows);
+		System.arraycopy(rows, rowOffset, boards[firstPiece], 0, searchRows);
+		if (!search(firstPiece)) {
+			return false;
+		}
+		for (int i = firstPiece; i < numPieces; i++) {
+			solutionRows[i] += rowOffset;
+		}
+		return true;
+	}
+	
+	/**
+	 * Stops a search running in another thread, which then returns false. 
+	 * The solver stays cancelled, so that a search started after this call 
+	 * returns at once.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+	
+	/**
+	 * Gets the piece state of the given step of the last solution.
+	 */
+	public PieceState getSolutionPiece(int step) {
+		return solutionPieces[step];
+	}
+	
+	/**
+	 * Gets the top-left row of the given step of the last solution.
+	 */
+	public int getSolutionRow(int step) {
+		return solutionRows[step];
+	}
+	
+	/**
+	 * Gets the top-left column of the given step of the last solution.
+	 */
+	public int getSolutionCol(int step) {
+		return solutionCols[step];
+	}
+	
+	/**
+	 * Gets the number of matrices searched by the last search.
+	 */
+	public long getNodes() {
+		return nodes;
+	}
+	
+	/**
+	 * Gets the placements of the first piece that can still take part in a 
+	 * perfect clear of the given matrix, so that their subtrees can be 
+	 * searched separately with {@link #solve(int[], PieceState[], int)}. The
+	 * matrix after each placement is written to the corresponding row of 
+	 * children.
+	 * 
+	 * @return the number of placements.
+	 */
+	public int expand(int[] rows, PieceState[] pieces, PieceState[] childPieces, 
+			int[] childRows, int[] childCols, int[][] children) {
+		setPieces(pieces);
+		searchRows = numRows;
+		int height = getClearHeight(rows, 0);
+		if (height < 0 || numPieces == 0) {
+			return 0;
+		}
+		MoveGenerator generator = getMoveGenerator(numRows);
+		int[] moves = expandedPlacements;
+		int numMoves = generator.generatePlacements(rows, pieces[0], startRow, 
+				startCol, moves);
+		int numChildren = 0;
+		for (int i = 0; i < numMoves; i++) {
+			PieceState state = pieces[0].getPieceDefinition().getState(
+					generator.getRotation(moves[i]));
+			int row = generator.getRow(moves[i]);
+			int col = generator.getCol(moves[i]);
+			if (row + getTopRow(state) >= numRows - height) {
+				childPieces[numChildren] = state;
+				childRows[numChildren] = row;
+				childCols[numChildren] = col;
+				TetrisMatrix.lockPiece(rows, children[numChildren], numRows, 
+						numCols, state, row, col);
+				numChildren++;
+			}
+		}
+		return numChildren;
+	}
+	
+	/**
+	 * Gets the maximum number of placements returned by {@link #expand}.
+	 */
+	public int getMaxPlacements() {
+		return expandedPlacements.length;
+	}
+	
+	private boolean search(int depth) {
+		nodes++;
+		int[] board = boards[depth];
+		if (depth == numPieces) {
+			return countCells(board) == 0;
+		}
+		if (cancelled) {
+			return false;
+		}
+		int height = getClearHeight(board, depth);
+		if (height < 0) {
+			return false;
+		}
+		long hash = hash(board, height, depth);
+		if (failedStates.contains(hash)) {
+			return false;
+		}
+		PieceState piece = pieces[depth];
+		PieceDefinition pieceDefinition = piece.getPieceDefinition();
+		int[] moves = placements[depth];
+		int numMoves = moveGenerator.generatePlacements(board, piece, startRow, 
+				startCol, moves);
+		int[] child = boards[depth + 1];
+		for (int i = 0; i < numMoves; i++) {
+			PieceState state = pieceDefinition.getState(
+					moveGenerator.getRotation(moves[i]));
+			int row = moveGenerator.getRow(moves[i]);
+			int col = moveGenerator.getCol(moves[i]);
+			if (row + getTopRow(state) < searchRows - height) {
+				continue;
+			}
+			TetrisMatrix.lockPiece(board, child, searchRows, numCols, state, row, 
+					col);
+			if (search(depth + 1)) {
+				solutionPieces[depth] = state;
+				solutionRows[depth] = row;
+				solutionCols[depth] = col;
+				return true;
+			}
+		}
+		if (!cancelled) {
+			failedStates.add(hash);
+		}
+		return false;
+	}
+	
+	/**
+	 * Gets the number of rows the pieces from the given depth on can still 
+	 * clear in the matrix, or -1 if the matrix cannot be cleared by them.
+	 */
+	private int getClearHeight(int[] rows, int depth) {
+		int cells = countCells(rows) + CELLS_PER_PIECE * (numPieces - depth);
+		if (cells % numCols != 0) {
+			return -1;
+		}
+		int height = cells / numCols;
+		if (height > searchRows) {
+			return -1;
+		}
+		int top = searchRows - height;
+		for (int r = 0; r < top; r++) {
+			if (rows[r] != 0) {
+				return -1;
+			}
+		}
+		int imbalance = 0;
+		int wallMask = fullRowMask;
+		for (int r = top; r < searchRows; r++) {
+			int empty = ~rows[r] & fullRowMask;
+			imbalance += Integer.bitCount(empty & evenColMask) 
+					- Integer.bitCount(empty & ~evenColMask);
+			wallMask &= rows[r];
+		}
+		imbalance = Math.abs(imbalance);
+		int maxImbalance = maxImbalances[depth];
+		if (imbalance > maxImbalance) {
+			return -1;
+		}
+		// Columns full up to the height split the matrix into parts.
+		if (wallMask != 0) {
+			int emptyCells = 0, partImbalance = 0, width = 0;
+			int totalImbalance = 0, wellPieces = 0;
+			for (int c = 0; c <= numCols; c++) {
+				if (c == numCols || (wallMask & (1 << c)) != 0) {
+					if (emptyCells % CELLS_PER_PIECE != 0) {
+						return -1;
+					}
+					totalImbalance += Math.abs(partImbalance);
+					if (width == 1) {
+						wellPieces += emptyCells / CELLS_PER_PIECE;
+					}
+					emptyCells = 0;
+					partImbalance = 0;
+					width = 0;
+				} else {
+					int columnCells = 0;
+					for (int r = top; r < searchRows; r++) {
+						if ((rows[r] & (1 << c)) == 0) {
+							columnCells++;
+						}
+					}
+					emptyCells += columnCells;
+					partImbalance += ((c & 1) == 0) ? columnCells : -columnCells;
+					width++;
+				}
+			}
+			// Each piece lies within a part, and only I pieces fit in a part
+			// one column wide.
+			if (totalImbalance > maxImbalance || wellPieces > remainingI[depth]) {
+				return -1;
+			}
+		}
+		return height;
+	}
+	
+	private int countCells(int[] rows) {
+		int cells = 0;
+		for (int r = 0; r < searchRows; r++) {
+			cells += Integer.bitCount(rows[r]);
+		}
+		return cells;
+	}
+	
+	private void setPieces(PieceState[] pieces) {
+		this.pieces = pieces;
+		numPieces = pieces.length;
+		ensureCapacity(numPieces);
+		maxImbalances[numPieces] = 0;
+		remainingI[numPieces] = 0;
+		pieceHashes[numPieces] = 0x9E3779B97F4A7C15L;
+		for (int i = numPieces - 1; i >= 0; i--) {
+			PieceDefinition pieceDefinition = pieces[i].getPieceDefinition();
+			pieceHashes[i] = (pieceHashes[i + 1] + pieceDefinition.getIndex() 
+					* PieceDefinition.TYPES_PER_PIECE + pieces[i].getRotation() + 1) 
+					* 0xC4CEB9FE1A85EC53L;
+			maxImbalances[i] = maxImbalances[i + 1] 
+					+ getMaxImbalance(pieceDefinition);
+			remainingI[i] = remainingI[i + 1] 
+					+ ((pieceDefinition.getBlockType() == BlockType.SHAPE_I) ? 1 : 0);
+		}
+	}
+	
+	/**
+	 * Gets the largest difference between the cells a piece covers in the even 
+	 * and in the odd columns.
+	 */
+	private static int getMaxImbalance(PieceDefinition pieceDefinition) {
+		int maxImbalance = 0;
+		for (int rotation = 0; rotation < PieceDefinition.TYPES_PER_PIECE; 
+				rotation++) {
+			int imbalance = 0;
+			for (int r = 0; r < Piece.PIECE_SIZE; r++) {
+				int mask = pieceDefinition.getRowMask(rotation, r);
+				imbalance += Integer.bitCount(mask & 0x5) 
+						- Integer.bitCount(mask & 0xA);
+			}
+			maxImbalance = Math.max(maxImbalance, Math.abs(imbalance));
+		}
+		return maxImbalance;
+	}
+	
+	private static int getTopRow(PieceState state) {
+		int row = 0;
+		while (state.getRowMask(row) == 0) {
+			row++;
+		}
+		return row;
+	}
+	
+	/**
+	 * Hashes the matrix with the remaining pieces, so that an entry holds for
+	 * any search that reaches the same matrix with the same pieces left.
+	 */
+	private long hash(int[] rows, int height, int depth) {
+		long hash = (pieceHashes[depth] + searchRows) * 0x9E3779B97F4A7C15L;
+		for (int r = searchRows - height; r < searchRows; r++) {
+			hash = (hash ^ rows[r]) * 0xFF51AFD7ED558CCDL;
+			hash ^= hash >>> 33;
+		}
+		return hash;
+	}
+	
+	private MoveGenerator getMoveGenerator(int rows) {
+		if (moveGenerators[rows] == null) {
+			moveGenerators[rows] = new MoveGenerator(rows, numCols, rotationSystem);
+		}
+		return moveGenerators[rows];
+	}
+	
+	private void ensureCapacity(int numPieces) {
+		if (boards != null && boards.length > numPieces) {
+			return;
+		}
+		boards = new int[numPieces + 1][numRows];
+		placements = new int[numPieces][expandedPlacements.length];
+		maxImbalances = new int[numPieces + 1];
+		remainingI = new int[numPieces + 1];
+		pieceHashes = new long[numPieces + 1];
+		solutionPieces = new PieceState[numPieces];
+		solutionRows = new int[numPieces];
+		solutionCols = new int[numPieces];
+	}
+	
+	/**
+	 * A set of 64-bit hashes of failed matrices, in buckets of 
+	 * {@link #BUCKET_SIZE} entries. Adding to a full bucket replaces one of 
+	 * its entries, so the table never has to be cleared.
+	 * 
+	 * A table can be shared by solvers on several threads without locking: 
+	 * an entry lost to a concurrent write only costs repeated work, and a torn 
+	 * one is as unlikely to match as any other hash.
+	 */
+	public static class Table {
+		private static final int BUCKET_SIZE = 4;
+		
+		private final long[] hashes;
+		private final int mask;
+		
+		public Table(int bits) {
+			hashes = new long[Math.max(BUCKET_SIZE, 1 << bits)];
+			mask = (hashes.length - 1) & ~(BUCKET_SIZE - 1);
+		}
+		
+		boolean contains(long hash) {
+			hash = (hash == 0) ? 1 : hash;
+			int bucket = (int) hash & mask;
+			for (int i = bucket; i < bucket + BUCKET_SIZE; i++) {
+				if (hashes[i] == hash) {
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		void add(long hash) {
+			hash = (hash == 0) ? 1 : hash;
+			int bucket = (int) hash & mask;
+			for (int i = bucket; i < bucket + BUCKET_SIZE; i++) {
+				if (hashes[i] == 0 || hashes[i] == hash) {
+					hashes[i] = hash;
+					return;
+				}
+			}
+			// The high bits pick the entry to replace, the low ones the bucket.
+			hashes[bucket + ((int) (hash >>> 32) & (BUCKET_SIZE - 1))] = hash;
+		}
+	}
+}
@@ -24,15 +24,44 @@ import com.google.gwt.user.client.Random;
  */
 public class Piece {
 	public static final int PIECE_SIZE = PieceDefinition.PIECE_SIZE;
-	private final PieceDefinition pieceDefinition;
-	private int rotation;
+	private PieceState state;
 	
 	/**
 	 * Creates a random tetris piece.
 	 */
 	public Piece() {
-		pieceDefinition = PieceDefinition.randomPieceDefinition();
-		rotation = Random.nextInt(PIECE_SIZE);
+		this(PieceDefinition.randomPieceDefinition(), Random.nextInt(PIECE_SIZE));
+	}
+	
+	/**
+	 * Creates a tetris piece of the given definition and rotation.
+	 * 
+	 * @param pieceDefinition the definition of the piece.
+	 * @param rotation the rotation of the piece [0, TYPES_PER_PIECE)
+	 */
+	public Piece(PieceDefinition pieceDefinition, int rotation) {
+		this.state = pieceDefinition.getState(rotation);
+	}
+	
+	/**
+	 * Gets the definition of the piece.
+	 */
+	public PieceDefinition getPieceDefinition() {
+		return state.getPieceDefinition();
+	}
+	
+	/**
+	 * Gets the current rotation of the piece.
+	 */
+	public int getRotation() {
+		return state.getRotation();
+	}
+	
+	/**
+	 * Gets the interned state of the piece at its current rotation.
+	 */
+	public PieceState getState() {
+		return state;
 	}
 	
 	/**
@@ -43,24 +72,20 @@ public class Piece {
 	 * @return
 	 */
 	public BlockType getBlock(int row, int col) {
-		return pieceDefinition.getBlock(rotation, row, col);
+		return state.getBlock(row, col);
 	}
 	
 	/**
 	 * Rotates the piece to the left.
 	 */
 	public void rotateLeft() {
-		if (--rotation < 0) {
-			rotation = PieceDefinition.TYPES_PER_PIECE - 1;
-		}
+		state = state.rotateLeft();
 	}
 	
 	/**
 	 * Rotates the piece to the right.
 	 */
 	public void rotateRight() {
-		if (++rotation >= PieceDefinition.TYPES_PER_PIECE) {
-			rotation = 0;
-		}
+		state = state.rotateRight();
 	}
 }
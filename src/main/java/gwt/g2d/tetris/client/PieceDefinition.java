@@ -29,6 +29,11 @@ public final class PieceDefinition {
 	public static final int TYPES_PER_PIECE = 4;
 	// Contains the definition of each rotation.
 	private final BlockType[][] definitions = new BlockType[TYPES_PER_PIECE][];
+	// Contains the occupied columns of each row of each rotation as a bitmask.
+	private final int[][] rowMasks = new int[TYPES_PER_PIECE][PIECE_SIZE];
+	private final PieceState[] states = new PieceState[TYPES_PER_PIECE];
+	private final BlockType type;
+	private int index;
 	private static final PieceDefinition[] PIECES = new PieceDefinition[] {
 			createShapeI(),
 			createShapeJ(),
@@ -39,6 +44,12 @@ public final class PieceDefinition {
 			createShapeZ(),
 	};
 	
+	static {
+		for (int i = 0; i < PIECES.length; i++) {
+			PIECES[i].index = i;
+		}
+	}
+	
 	/**
 	 * Initializes the piece.
 	 * 
@@ -48,10 +59,25 @@ public final class PieceDefinition {
 	 * 				or 4 (e.g., L shape).
 	 */
 	private PieceDefinition(BlockType type, int[]... pieceDef) {
+		this.type = type;
 		for (int i = 0, j = 0; i < TYPES_PER_PIECE; i++) {
 			definitions[i] = loadBlockType(type, pieceDef[j]);
+			for (int r = 0; r < PIECE_SIZE; r++) {
+				for (int c = 0; c < PIECE_SIZE; c++) {
+					if (definitions[i][r * PIECE_SIZE + c] != null) {
+						rowMasks[i][r] |= 1 << c;
+					}
+				}
+			}
 			j = (j + 1) % pieceDef.length;
 		}
+		for (int i = 0; i < TYPES_PER_PIECE; i++) {
+			states[i] = new PieceState(this, i);
+		}
+		for (int i = 0; i < TYPES_PER_PIECE; i++) {
+			states[i].link(states[(i + 1) % TYPES_PER_PIECE], 
+					states[(i + TYPES_PER_PIECE - 1) % TYPES_PER_PIECE]);
+		}
 	}
 	
 	/**
@@ -61,6 +87,50 @@ public final class PieceDefinition {
 		return PIECES[Random.nextInt(PIECES.length)];
 	}
 	
+	/**
+	 * Gets a random piece definition from the given seeded generator.
+	 */
+	public static PieceDefinition randomPieceDefinition(SeededRandom random) {
+		return PIECES[random.nextInt(PIECES.length)];
+	}
+	
+	/**
+	 * Gets the number of distinct piece definitions.
+	 */
+	public static int getNumPieceDefinitions() {
+		return PIECES.length;
+	}
+	
+	/**
+	 * Gets the piece definition at the given index [0, getNumPieceDefinitions()).
+	 */
+	public static PieceDefinition getPieceDefinition(int index) {
+		return PIECES[index];
+	}
+	
+	/**
+	 * Gets the index of this definition [0, getNumPieceDefinitions()).
+	 */
+	public int getIndex() {
+		return index;
+	}
+	
+	/**
+	 * Gets the type of block that this piece contains.
+	 */
+	public BlockType getBlockType() {
+		return type;
+	}
+	
+	/**
+	 * Gets the interned state of this piece at the given rotation.
+	 * 
+	 * @param rotation the rotation of the piece [0, TYPES_PER_PIECE)
+	 */
+	public PieceState getState(int rotation) {
+		return states[rotation];
+	}
+	
 	/**
 	 * Returns the type of block at the given cell.
 	 * 
@@ -73,6 +143,18 @@ public final class PieceDefinition {
 		return definitions[rotation][row * PIECE_SIZE + col];
 	}
 	
+	/**
+	 * Returns the occupied cells of a row of the piece as a bitmask, where bit
+	 * c is set if the cell at column c is occupied.
+	 * 
+	 * @param rotation the rotation of the piece [0, TYPES_PER_PIECE)
+	 * @param row the row of the piece [0, PIECE_SIZE)
+	 * @return the bitmask of the occupied columns.
+	 */
+	public int getRowMask(int rotation, int row) {
+		return rowMasks[rotation][row];
+	}
+	
 	/**
 	 * Creates a matrix of block type using the given piece definition.
 	 * The piece definition is a 16-elements array with 0 representing empty
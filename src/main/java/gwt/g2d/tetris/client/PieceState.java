@@ -0,0 +1,114 @@
+/*
+ * Copyright 2009 Hao Nguyen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwt.g2d.tetris.client;
+
+/**
+ * An immutable tetris piece at a given rotation. There is exactly one 
+ * instance per piece definition and rotation, obtained through 
+ * {@link PieceDefinition#getState}, so states can be compared by identity
+ * and rotating never allocates.
+ */
+public final class PieceState {
+	private final PieceDefinition pieceDefinition;
+	private final int rotation;
+	private PieceState right, left;
+	
+	PieceState(PieceDefinition pieceDefinition, int rotation) {
+		this.pieceDefinition = pieceDefinition;
+		this.rotation = rotation;
+	}
+	
+	/**
+	 * Sets the states reached by rotating this state.
+	 */
+	void link(PieceState right, PieceState left) {
+		this.right = right;
+		this.left = left;
+	}
+	
+	/**
+	 * Gets the number of distinct states.
+	 */
+	public static int getNumStates() {
+		return PieceDefinition.getNumPieceDefinitions() 
+				* PieceDefinition.TYPES_PER_PIECE;
+	}
+	
+	/**
+	 * Gets the state with the given index [0, getNumStates()).
+	 */
+	public static PieceState getState(int index) {
+		return PieceDefinition.getPieceDefinition(
+				index / PieceDefinition.TYPES_PER_PIECE)
+				.getState(index % PieceDefinition.TYPES_PER_PIECE);
+	}
+	
+	/**
+	 * Gets the index of this state [0, getNumStates()), suitable for tables.
+	 */
+	public int getIndex() {
+		return pieceDefinition.getIndex() * PieceDefinition.TYPES_PER_PIECE 
+				+ rotation;
+	}
+	
+	/**
+	 * Gets the definition of the piece.
+	 */
+	public PieceDefinition getPieceDefinition() {
+		return pieceDefinition;
+	}
+	
+	/**
+	 * Gets the rotation of the piece.
+	 */
+	public int getRotation() {
+		return rotation;
+	}
+	
+	/**
+	 * Gets the type of block at the given cell.
+	 * 
+	 * @param row
+	 * @param col
+	 * @return the block type, or null if the cell is empty.
+	 */
+	public BlockType getBlock(int row, int col) {
+		return pieceDefinition.getBlock(rotation, row, col);
+	}
+	
+	/**
+	 * Gets the occupied columns of the given row as a bitmask.
+	 * 
+	 * @see PieceDefinition#getRowMask
+	 */
+	public int getRowMask(int row) {
+		return pieceDefinition.getRowMask(rotation, row);
+	}
+	
+	/**
+	 * Gets the state rotated to the right.
+	 */
+	public PieceState rotateRight() {
+		return right;
+	}
+	
+	/**
+	 * Gets the state rotated to the left.
+	 */
+	public PieceState rotateLeft() {
+		return left;
+	}
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2009 Hao Nguyen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwt.g2d.tetris.client;
+
+/**
+ * Searches the reachable placements of the current piece of a game for the
+ * one that the {@link Evaluator} scores best. 
+ * 
+ * The search works on a snapshot of the matrix taken by {@link #start}, and 
+ * can be run to completion at once or a few placements at a time with
+ * {@link #step}, the best placement so far being available in between. The
+ * placements are generated by the first step rather than by start, which 
+ * only copies the matrix. A search can be restarted after the piece has 
+ * moved with the best placement of the previous one evaluated first, so 
+ * that it stays the best one as long as the piece can still reach it. All 
+ * the buffers are allocated once.
+ */
+public class PlacementSearch {
+	private final Evaluator evaluator;
+	private final TetrisMatrix board, scratch;
+	private final MoveGenerator moveGenerator;
+	private final int[] placements;
+	private PieceDefinition pieceDefinition;
+	// The piece as of the start, null if the game had none.
+	private PieceState startPiece;
+	private int startRow, startCol, startNumPieces;
+	// The best placement of the previous search, evaluated first if it is
+	// reachable, null if none.
+	private PieceState keptPiece;
+	private int keptRow, keptCol;
+	private boolean generated;
+	private int numPlacements, nextPlacement;
+	private int bestPlacement;
+	private double bestScore;
+	
+	public PlacementSearch(Evaluator evaluator, int numRows, int numCols) {
+		this.evaluator = evaluator;
+		board = new TetrisMatrix(numRows, numCols);
+		scratch = new TetrisMatrix(numRows, numCols);
+		moveGenerator = new MoveGenerator(numRows, numCols, RotationSystem.NONE);
+		placements = new int[moveGenerator.getMaxPlacements()];
+	}
+	
+	/**
+	 * Takes a snapshot of the game to search the placements of its current
+	 * piece, discarding any previous search.
+	 * 
+	 * @return false if the game has no current piece.
+	 */
+	public boolean start(TetrisGame game) {
+		keptPiece = null;
+		return snapshot(game);
+	}
+	
+	/**
+	 * Takes a snapshot of the game to search the placements of its current
+	 * piece again, evaluating the best placement of the previous search first
+	 * if the piece can still reach it. The previous search must have been 
+	 * for the same piece, see {@link #isStartedFor}.
+	 * 
+	 * @return false if the game has no current piece.
+	 */
+	public boolean restart(TetrisGame game) {
+		keptPiece = hasBestPlacement() ? getBestPiece() : null;
+		keptRow = hasBestPlacement() ? getBestRow() : 0;
+		keptCol = hasBestPlacement() ? getBestCol() : 0;
+		return snapshot(game);
+	}
+	
+	private boolean snapshot(TetrisGame game) {
+		startPiece = game.getCurrentPiece();
+		numPlacements = 0;
+		nextPlacement = 0;
+		bestPlacement = -1;
+		generated = false;
+		if (startPiece == null) {
+			return false;
+		}
+		pieceDefinition = startPiece.getPieceDefinition();
+		startRow = game.getCurrentRow();
+		startCol = game.getCurrentCol();
+		startNumPieces = game.getNumPieces();
+		board.copyFrom(game.getMatrix());
+		board.removePiece(startRow, startCol, startPiece);
+		moveGenerator.setRotationSystem(game.getRotationSystem());
+		return true;
+	}
+	
+	/**
+	 * Whether the last {@link #start} or {@link #restart} was for the current
+	 * piece of the game in the same matrix, wherever the piece has moved 
+	 * since, i.e., whether the search can be restarted with {@link #restart}.
+	 */
+	public boolean isStartedFor(TetrisGame game) {
+		PieceState piece = game.getCurrentPiece();
+		if (startPiece == null || piece == null 
+				|| piece.getPieceDefinition() != pieceDefinition 
+				|| game.getNumPieces() != startNumPieces) {
+			return false;
+		}
+		TetrisMatrix matrix = game.getMatrix();
+		int row = game.getCurrentRow(), col = game.getCurrentCol();
+		for (int r = 0; r < board.getNumRows(); r++) {
+			int mask = matrix.getRowMask(r);
+			if (r >= row && r < row + Piece.PIECE_SIZE) {
+				int pieceMask = piece.getRowMask(r - row);
+				mask &= ~((col >= 0) ? pieceMask << col : pieceMask >>> -col);
+			}
+			if (mask != board.getRowMask(r)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Whether the last {@link #start} or {@link #restart} was for the current
+	 * state of the game, i.e., the piece has not moved since.
+	 */
+	public boolean isStartedAt(TetrisGame game) {
+		return startPiece != null && game.getCurrentPiece() == startPiece 
+				&& game.getCurrentRow() == startRow 
+				&& game.getCurrentCol() == startCol && isStartedFor(game);
+	}
+	
+	/**
+	 * Gets the snapshot of the matrix taken by the last {@link #start}, without
+	 * the current piece.
+	 */
+	public TetrisMatrix getMatrix() {
+		return board;
+	}
+	
+	/**
+	 * Evaluates up to the given number of placements.
+	 * 
+	 * @return true if the best placement has changed.
+	 */
+	public boolean step(int count) {
+		if (!generated && startPiece != null) {
+			numPlacements = moveGenerator.generate(board, startPiece, startRow, 
+					startCol, placements);
+			generated = true;
+			moveKeptPlacementFirst();
+		}
+		boolean improved = false;
+		int end = Math.min(numPlacements, nextPlacement + count);
+		for (; nextPlacement < end; nextPlacement++) {
+			int placement = placements[nextPlacement];
+			int row = moveGenerator.getRow(placement);
+			scratch.copyFrom(board);
+			scratch.setPiece(row, moveGenerator.getCol(placement), 
+					pieceDefinition.getState(moveGenerator.getRotation(placement)));
+			int rowsCleared = scratch.checkAndClear(row + Piece.PIECE_SIZE);
+			double score = evaluator.evaluate(scratch, rowsCleared);
+			if (bestPlacement < 0 || score > bestScore) {
+				bestScore = score;
+				bestPlacement = placement;
+				improved = true;
+			}
+		}
+		return improved;
+	}
+	
+	/**
+	 * Swaps the placement that covers the same cells as the kept one, if any,
+	 * with the first one.
+	 */
+	private void moveKeptPlacementFirst() {
+		if (keptPiece == null) {
+			return;
+		}
+		for (int i = 0; i < numPlacements; i++) {
+			int placement = placements[i];
+			if (moveGenerator.getRow(placement) == keptRow 
+					&& moveGenerator.getCol(placement) == keptCol 
+					&& isSameCells(pieceDefinition.getState(
+							moveGenerator.getRotation(placement)), keptPiece)) {
+				placements[i] = placements[0];
+				placements[0] = placement;
+				return;
+			}
+		}
+	}
+	
+	private static boolean isSameCells(PieceState state1, PieceState state2) {
+		for (int r = 0; r < Piece.PIECE_SIZE; r++) {
+			if (state1.getRowMask(r) != state2.getRowMask(r)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Evaluates all the remaining placements.
+	 * 
+	 * @return true if a placement was found.
+	 */
+	public boolean run() {
+		step(moveGenerator.getMaxPlacements());
+		return hasBestPlacement();
+	}
+	
+	/**
+	 * Whether every placement has been evaluated.
+	 */
+	public boolean isDone() {
+		return (generated || startPiece == null) && nextPlacement >= numPlacements;
+	}
+	
+	/**
+	 * Whether a placement has been found so far.
+	 */
+	public boolean hasBestPlacement() {
+		return bestPlacement >= 0;
+	}
+	
+	/**
+	 * Gets the piece state of the best placement so far.
+	 */
+	public PieceState getBestPiece() {
+		return pieceDefinition.getState(moveGenerator.getRotation(bestPlacement));
+	}
+	
+	/**
+	 * Gets the top-left row of the best placement so far.
+	 */
+	public int getBestRow() {
+		return moveGenerator.getRow(bestPlacement);
+	}
+	
+	/**
+	 * Gets the top-left column of the best placement so far.
+	 */
+	public int getBestCol() {
+		return moveGenerator.getCol(bestPlacement);
+	}
+	
+	/**
+	 * Gets the score of the best placement so far.
+	 */
+	public double getBestScore() {
+		return bestScore;
+	}
+	
+	/**
+	 * Gets the inputs that bring the piece to the best placement so far.
+	 * 
+	 * @param moves receives the MoveGenerator.MOVE_* inputs, must have at 
+	 * 				least {@link #getMaxMoves} elements.
+	 * @return the number of inputs.
+	 */
+	public int getBestPath(int[] moves) {
+		return moveGenerator.getPath(bestPlacement, moves);
+	}
+	
+	/**
+	 * Gets the maximum number of inputs of a path.
+	 */
+	public int getMaxMoves() {
+		return moveGenerator.getMaxPlacements();
+	}
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2009 Hao Nguyen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwt.g2d.tetris.client;
+
+/**
+ * Runs a game whose inputs arrive late, e.g., the game of an opponent 
+ * received over the network, by predicting the missing inputs and rolling
+ * back when a prediction turns out to be wrong.
+ * 
+ * Each frame is simulated from an input, which is the set of buttons held 
+ * during that frame: a button acts when it is pressed, i.e., held in a 
+ * frame and not in the previous one. A frame whose input has not been 
+ * confirmed yet uses the last confirmed input, which holds the same buttons
+ * and so presses none. When the confirmed input of a frame differs from the 
+ * one it was simulated with, the state before the frame is restored from a
+ * ring of per-frame snapshots kept in a {@link GameSlab} and the frames up 
+ * to the current one are simulated again on the next {@link #advance}.
+ * 
+ * Since games do not interact, each game is rolled back on its own. The
+ * listener and event sink of the game see the re-simulated frames again.
+ */
+public class RollbackGame {
+	public static final int INPUT_LEFT = 1, INPUT_RIGHT = 2, INPUT_DOWN = 4,
+			INPUT_ROTATE = 8, INPUT_DROP = 16;
+	private static final int NO_ROLLBACK = -1;
+	
+	private final TetrisGame game;
+	private final int maxRollbackFrames;
+	private final GameSlab snapshots;
+	private final GameSlab.View view;
+	// Slab ids of the snapshots of the last frames, by frame modulo their number.
+	private final int[] snapshotIds;
+	// Inputs the last frames were simulated with.
+	private final int[] usedInputs;
+	// Confirmed inputs, by frame modulo their number.
+	private final int[] inputs;
+	private int frame, confirmedFrame = -1, rollbackFrame = NO_ROLLBACK;
+	private int numRollbacks;
+	private long resimulatedFrames;
+	
+	/**
+	 * Creates a rollback over a game that has not started yet.
+	 * 
+	 * @param maxRollbackFrames the maximum number of frames simulated ahead of 
+	 * 				the confirmed inputs, and so re-simulated by a rollback.
+	 */
+	public RollbackGame(TetrisGame game, int maxRollbackFrames) {
+		this.game = game;
+		this.maxRollbackFrames = maxRollbackFrames;
+		TetrisMatrix matrix = game.getMatrix();
+		snapshots = new GameSlab(maxRollbackFrames + 1, matrix.getNumRows(), 
+				matrix.getNumCols());
+		view = snapshots.newView();
+		snapshotIds = new int[maxRollbackFrames + 1];
+		for (int i = 0; i < snapshotIds.length; i++) {
+			snapshotIds[i] = snapshots.allocate();
+		}
+		usedInputs = new int[maxRollbackFrames + 2];
+		inputs = new int[2 * (maxRollbackFrames + 1)];
+	}
+	
+	/**
+	 * Simulates one frame of a game: applies the buttons pressed since the
+	 * previous input, then updates the game.
+	 */
+	public static void step(TetrisGame game, int previousInput, int input) {
+		int pressed = input & ~previousInput;
+		if ((pressed & INPUT_ROTATE) != 0) {
+			game.rotate();
+		}
+		if ((pressed & INPUT_LEFT) != 0) {
+			game.move(0, -1);
+		}
+		if ((pressed & INPUT_RIGHT) != 0) {
+			game.move(0, 1);
+		}
+		if ((pressed & INPUT_DOWN) != 0) {
+			game.move(1, 0);
+		}
+		if ((pressed & INPUT_DROP) != 0) {
+			game.hardDrop();
+		}
+		game.update();
+	}
+	
+	/**
+	 * Confirms the input of the next frame. Inputs must be confirmed in order,
+	 * and at most maxRollbackFrames frames ahead of the simulation.
+	 * 
+	 * @param frame the frame of the input, confirmedFrame + 1.
+	 */
+	public void addInput(int frame, int input) {
+		if (frame != confirmedFrame + 1) {
+			throw new IllegalArgumentException("Expected the input of frame " 
+					+ (confirmedFrame + 1) + ", got " + frame);
+		}
+		if (frame > this.frame + maxRollbackFrames) {
+			throw new IllegalStateException("Input of frame " + frame 
+					+ " is too far ahead of frame " + this.frame);
+		}
+		inputs[frame % inputs.length] = input;
+		confirmedFrame = frame;
+		// The frames from this one on are now predicted with this input.
+		for (int f = frame; f < this.frame; f++) {
+			if (usedInputs[f % usedInputs.length] != input) {
+				if (rollbackFrame == NO_ROLLBACK || f < rollbackFrame) {
+					rollbackFrame = f;
+				}
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Checks whether the next frame can be simulated without predicting more 
+	 * than maxRollbackFrames frames.
+	 */
+	public boolean canAdvance() {
+		return frame - confirmedFrame <= maxRollbackFrames;
+	}
+	
+	/**
+	 * Rolls back to the first mispredicted frame, if any, and simulates the 
+	 * frames up to and including the next one.
+	 * 
+	 * @return false if the next frame cannot be simulated yet, see 
+	 * 				{@link #canAdvance}.
+	 */
+	public boolean advance() {
+		if (!canAdvance()) {
+			return false;
+		}
+		rollback();
+		simulate(frame++);
+		return true;
+	}
+	
+	/**
+	 * Rolls back to the first mispredicted frame, if any, and simulates the
+	 * frames simulated so far again, without simulating the next one.
+	 * 
+	 * @return true if there was a misprediction.
+	 */
+	public boolean rollback() {
+		if (rollbackFrame == NO_ROLLBACK) {
+			return false;
+		}
+		view.moveTo(snapshotIds[rollbackFrame % snapshotIds.length]).load(game);
+		for (int f = rollbackFrame; f < frame; f++) {
+			simulate(f);
+		}
+		numRollbacks++;
+		resimulatedFrames += frame - rollbackFrame;
+		rollbackFrame = NO_ROLLBACK;
+		return true;
+	}
+	
+	/**
+	 * Gets the game, as simulated with the predicted inputs.
+	 */
+	public TetrisGame getGame() {
+		return game;
+	}
+	
+	/**
+	 * Gets the number of frames simulated.
+	 */
+	public int getFrame() {
+		return frame;
+	}
+	
+	/**
+	 * Gets the last frame whose input is confirmed, or -1 if none is.
+	 */
+	public int getConfirmedFrame() {
+		return confirmedFrame;
+	}
+	
+	/**
+	 * Gets the number of rollbacks so far.
+	 */
+	public int getNumRollbacks() {
+		return numRollbacks;
+	}
+	
+	/**
+	 * Gets the number of frames simulated again by the rollbacks so far.
+	 */
+	public long getResimulatedFrames() {
+		return resimulatedFrames;
+	}
+	
+	private void simulate(int f) {
+		view.moveTo(snapshotIds[f % snapshotIds.length]).store(game);
+		int input;
+		if (f <= confirmedFrame) {
+			input = inputs[f % inputs.length];
+		} else {
+			input = (confirmedFrame < 0) ? 0 
+					: inputs[confirmedFrame % inputs.length];
+		}
+		int previousInput = (f == 0) ? 0 
+				: usedInputs[(f - 1) % usedInputs.length];
+		step(game, previousInput, input);
+		usedInputs[f % usedInputs.length] = input;
+	}
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2009 Hao Nguyen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwt.g2d.tetris.client;
+
+/**
+ * Decides where a piece ends up when it is rotated. When the rotated piece
+ * does not fit, a list of kick offsets is tried in order and the first one
+ * that fits is used; if none fits, the rotation fails.
+ * 
+ * The kick offsets of every piece state and direction are precomputed into
+ * a table when the rotation system is created.
+ * 
+ * Kick tables with an entry per rotation are given in the states of the 
+ * Super Rotation System (SRS): 0 is the spawn state, then R, 2 and L 
+ * clockwise. Rotation 0 of the piece definitions is SRS state 2 (e.g., the T
+ * pointing down), and the I, S and Z pieces only have two positions where SRS
+ * has four, so each rotation is mapped to its SRS state and to the offset of 
+ * its cells from that state.
+ */
+public final class RotationSystem {
+	public static final int CLOCKWISE = 0, COUNTER_CLOCKWISE = 1;
+	// The SRS state of rotation 0 of the piece definitions.
+	private static final int ROTATION_0_STATE = 2;
+	
+	/** Only rotates in place, without any kick. */
+	public static final RotationSystem NONE = new RotationSystem("none", 
+			new int[][] { { 0, 0 } }, new int[][] { { 0, 0 } }, 
+			new int[][] { { 0, 0 } });
+	
+	/**
+	 * The kicks of the Super Rotation System, given as {x, y} offsets with y 
+	 * pointing up, indexed by SRS state * 2 + direction.
+	 */
+	public static final RotationSystem STANDARD = new RotationSystem("standard",
+			new int[][] {
+					// 0 -> R, 0 -> L
+					{ 0, 0, -1, 0, -1, 1, 0, -2, -1, -2 },
+					{ 0, 0, 1, 0, 1, 1, 0, -2, 1, -2 },
+					// R -> 2, R -> 0
+					{ 0, 0, 1, 0, 1, -1, 0, 2, 1, 2 },
+					{ 0, 0, 1, 0, 1, -1, 0, 2, 1, 2 },
+					// 2 -> L, 2 -> R
+					{ 0, 0, 1, 0, 1, 1, 0, -2, 1, -2 },
+					{ 0, 0, -1, 0, -1, 1, 0, -2, -1, -2 },
+					// L -> 0, L -> 2
+					{ 0, 0, -1, 0, -1, -1, 0, 2, -1, 2 },
+					{ 0, 0, -1, 0, -1, -1, 0, 2, -1, 2 },
+			},
+			new int[][] {
+					// 0 -> R, 0 -> L
+					{ 0, 0, -2, 0, 1, 0, -2, -1, 1, 2 },
+					{ 0, 0, -1, 0, 2, 0, -1, 2, 2, -1 },
+					// R -> 2, R -> 0
+					{ 0, 0, -1, 0, 2, 0, -1, 2, 2, -1 },
+					{ 0, 0, 2, 0, -1, 0, 2, 1, -1, -2 },
+					// 2 -> L, 2 -> R
+					{ 0, 0, 2, 0, -1, 0, 2, 1, -1, -2 },
+					{ 0, 0, 1, 0, -2, 0, 1, -2, -2, 1 },
+					// L -> 0, L -> 2
+					{ 0, 0, 1, 0, -2, 0, 1, -2, -2, 1 },
+					{ 0, 0, -2, 0, 1, 0, -2, -1, 1, 2 },
+			},
+			new int[][] { { 0, 0 } });
+	
+	private final String name;
+	// The {row, col} kick offsets indexed by state index * 2 + direction.
+	private final int[][] kicks;
+	
+	/**
+	 * Creates a rotation system from {x, y} kick offsets (y pointing up). Each
+	 * table is indexed by SRS state * 2 + direction, or has a single entry 
+	 * that applies to all rotations and directions as they are.
+	 * 
+	 * @param name the name of the rotation system.
+	 * @param kicks the kicks of the J, L, S, T and Z pieces.
+	 * @param kicksI the kicks of the I piece.
+	 * @param kicksO the kicks of the O piece.
+	 */
+	public RotationSystem(String name, int[][] kicks, int[][] kicksI, 
+			int[][] kicksO) {
+		this.name = name;
+		this.kicks = new int[PieceState.getNumStates() * 2][];
+		for (int i = 0; i < PieceState.getNumStates(); i++) {
+			PieceState state = PieceState.getState(i);
+			BlockType type = state.getPieceDefinition().getBlockType();
+			int[][] table = (type == BlockType.SHAPE_I) ? kicksI 
+					: (type == BlockType.SHAPE_O) ? kicksO : kicks;
+			int[][] offsets = getStateOffsets(state.getPieceDefinition());
+			for (int direction = CLOCKWISE; direction <= COUNTER_CLOCKWISE; 
+					direction++) {
+				int rotation = state.getRotation();
+				int rotated = rotate(state, direction).getRotation();
+				int[] xy;
+				int rowOffset = 0, colOffset = 0;
+				if (table.length == 1) {
+					xy = table[0];
+				} else {
+					xy = table[((rotation + ROTATION_0_STATE) 
+							% PieceDefinition.TYPES_PER_PIECE) * 2 + direction];
+					// Moves from the SRS position back to the one of the rotated
+					// definition.
+					rowOffset = offsets[rotation][0] - offsets[rotated][0];
+					colOffset = offsets[rotation][1] - offsets[rotated][1];
+				}
+				int[] rowCol = new int[xy.length];
+				for (int k = 0; k < xy.length; k += 2) {
+					rowCol[k] = -xy[k + 1] + rowOffset;
+					rowCol[k + 1] = xy[k] + colOffset;
+				}
+				this.kicks[i * 2 + direction] = rowCol;
+			}
+		}
+	}
+	
+	/**
+	 * Gets the {row, col} offset of the cells of each rotation of a piece from
+	 * its SRS state, i.e., from rotation 0 turned clockwise about the center 
+	 * of its 3x3 box (4x4 for the I piece) as many times. The O piece does 
+	 * not move when it rotates.
+	 */
+	private static int[][] getStateOffsets(PieceDefinition definition) {
+		int numRotations = PieceDefinition.TYPES_PER_PIECE;
+		int[][] offsets = new int[numRotations][2];
+		if (definition.getBlockType() == BlockType.SHAPE_O) {
+			return offsets;
+		}
+		int boxSize = (definition.getBlockType() == BlockType.SHAPE_I) ? 4 : 3;
+		for (int rotation = 1; rotation < numRotations; rotation++) {
+			int[] previous = offsets[rotation - 1];
+			// Compares the first cells, in row-major order, of the SRS state 
+			// turned clockwise and of the definition.
+			int turnedRow = Integer.MAX_VALUE, turnedCol = Integer.MAX_VALUE;
+			int firstRow = -1, firstCol = -1;
+			for (int row = Piece.PIECE_SIZE - 1; row >= 0; row--) {
+				for (int col = Piece.PIECE_SIZE - 1; col >= 0; col--) {
+					if (definition.getBlock(rotation - 1, row, col) != null) {
+						int r = col - previous[1];
+						int c = boxSize - 1 - (row - previous[0]);
+						if (r < turnedRow || (r == turnedRow && c < turnedCol)) {
+							turnedRow = r;
+							turnedCol = c;
+						}
+					}
+					if (definition.getBlock(rotation, row, col) != null) {
+						firstRow = row;
+						firstCol = col;
+					}
+				}
+			}
+			offsets[rotation][0] = firstRow - turnedRow;
+			offsets[rotation][1] = firstCol - turnedCol;
+		}
+		return offsets;
+	}
+	
+	/**
+	 * Gets the name of the rotation system.
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * Gets the state reached by rotating the given state.
+	 * 
+	 * @param state
+	 * @param direction CLOCKWISE or COUNTER_CLOCKWISE.
+	 */
+	public static PieceState rotate(PieceState state, int direction) {
+		return (direction == CLOCKWISE) ? state.rotateRight() : state.rotateLeft();
+	}
+	
+	/**
+	 * Gets the number of kicks tried when rotating the given state.
+	 */
+	public int getNumKicks(PieceState state, int direction) {
+		return kicks[state.getIndex() * 2 + direction].length / 2;
+	}
+	
+	/**
+	 * Gets the row offset of the given kick.
+	 */
+	public int getKickRow(PieceState state, int direction, int kick) {
+		return kicks[state.getIndex() * 2 + direction][kick * 2];
+	}
+	
+	/**
+	 * Gets the column offset of the given kick.
+	 */
+	public int getKickCol(PieceState state, int direction, int kick) {
+		return kicks[state.getIndex() * 2 + direction][kick * 2 + 1];
+	}
+	
+	/**
+	 * Finds the first kick with which the rotated piece fits in the matrix.
+	 * The piece must have been removed from the matrix.
+	 * 
+	 * @param matrix the matrix without the piece.
+	 * @param row the top-left row of the piece.
+	 * @param col the top-left column of the piece.
+	 * @param state the state of the piece before the rotation.
+	 * @param direction CLOCKWISE or COUNTER_CLOCKWISE.
+	 * @return the index of the kick, or -1 if the piece cannot rotate.
+	 */
+	public int findKick(TetrisMatrix matrix, int row, int col, PieceState state,
+			int direction) {
+		int[] offsets = kicks[state.getIndex() * 2 + direction];
+		PieceState rotated = rotate(state, direction);
+		for (int k = 0; k < offsets.length; k += 2) {
+			if (matrix.isValidPiece(row + offsets[k], col + offsets[k + 1], rotated)) {
+				return k / 2;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2009 Hao Nguyen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwt.g2d.tetris.client;
+
+/**
+ * A small, deterministic pseudo-random generator (xorshift) that behaves
+ * identically when compiled by GWT and when running on a JVM, so that a seed
+ * always reproduces the same sequence of pieces.
+ */
+public final class SeededRandom {
+	private int state;
+	
+	public SeededRandom(int seed) {
+		setState(seed);
+	}
+	
+	/**
+	 * Gets the internal state of the generator.
+	 */
+	public int getState() {
+		return state;
+	}
+	
+	/**
+	 * Restores the internal state of the generator.
+	 */
+	public void setState(int state) {
+		// Zero is a fixed point of xorshift.
+		this.state = (state == 0) ? 0x9E3779B9 : state;
+	}
+	
+	/**
+	 * Returns the next pseudo-random value in [0, bound).
+	 */
+	public int nextInt(int bound) {
+		int x = state;
+		x ^= x << 13;
+		x ^= x >>> 17;
+		x ^= x << 5;
+		state = x;
+		return (x >>> 1) % bound;
+	}
+}
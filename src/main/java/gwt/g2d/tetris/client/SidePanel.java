@@ -0,0 +1,134 @@
+/*
+ * Copyright 2009 Hao Nguyen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwt.g2d.tetris.client;
+
+import gwt.g2d.client.graphics.KnownColor;
+import gwt.g2d.client.graphics.Surface;
+
+import com.google.gwt.event.dom.client.ClickEvent;
+import com.google.gwt.event.dom.client.ClickHandler;
+import com.google.gwt.user.client.ui.Button;
+import com.google.gwt.user.client.ui.FlowPanel;
+import com.google.gwt.user.client.ui.Label;
+import com.google.gwt.user.client.ui.Panel;
+import com.google.gwt.user.client.ui.Widget;
+
+/**
+ * The panel next to the tetris board, with the next piece, the number of
+ * lines cleared, the level and the buttons to change it. It is only 
+ * referenced from behind a split point so that it is downloaded after the
+ * board.
+ */
+class SidePanel extends FlowPanel {
+	private final Tetris tetris;
+	private final Tetris.TetrisRenderer renderer;
+	private final Surface nextPieceSurface;
+	private final Label levelLabel = new Label();
+	private final Label rowsClearedLabel = new Label();
+	
+	public SidePanel(Tetris tetris, Tetris.TetrisRenderer renderer, 
+			int blockPixelSize) {
+		this.tetris = tetris;
+		this.renderer = renderer;
+		nextPieceSurface = new Surface(Piece.PIECE_SIZE * blockPixelSize,
+				Piece.PIECE_SIZE * blockPixelSize);
+		Button resetButton = new Button("Reset", new ClickHandler() {
+			@Override
+			public void onClick(ClickEvent event) {
+				SidePanel.this.tetris.reset();
+			}
+		});
+		Button previousLevelButton = new Button("Previous level", new ClickHandler() {
+			@Override
+			public void onClick(ClickEvent event) {
+				SidePanel.this.tetris.setLevelOffset(
+						Math.max(1, SidePanel.this.tetris.getLevelOffset() - 1));
+				SidePanel.this.tetris.reset();
+			}
+		});
+		Button nextLevelButton = new Button("Next level", new ClickHandler() {
+			@Override
+			public void onClick(ClickEvent event) {
+				SidePanel.this.tetris.setLevelOffset(
+						SidePanel.this.tetris.getLevelOffset() + 1);
+				SidePanel.this.tetris.reset();
+			}
+		});
+		
+		add(createPanel(createHeaderLabel("Next Piece"), nextPieceSurface));
+		add(createPanel(createHeaderLabel("Lines Cleared"), rowsClearedLabel));
+		add(createPanel(createHeaderLabel("Level"), levelLabel));
+		add(createPanel(resetButton));
+		add(createPanel(previousLevelButton));
+		add(createPanel(nextLevelButton));
+		setStyleName("sidePanel");
+		
+		nextPieceSurface.fillBackground(KnownColor.BLACK);
+	}
+	
+	/**
+	 * Draws the next piece.
+	 */
+	public void drawNextPiece(PieceState nextPiece) {
+		nextPieceSurface.clear();
+		for (int r = 0; r < Piece.PIECE_SIZE; r++) {
+			for (int c = 0; c < Piece.PIECE_SIZE; c++) {
+				renderer.drawBlock(nextPieceSurface, r, c, nextPiece.getBlock(r, c));
+			}
+		}
+	}
+	
+	/**
+	 * Sets the level shown.
+	 */
+	public void setLevel(int level) {
+		levelLabel.setText(Integer.toString(level));
+	}
+	
+	/**
+	 * Sets the total number of rows cleared shown.
+	 */
+	public void setTotalRowsCleared(int totalRowsCleared) {
+		rowsClearedLabel.setText(Integer.toString(totalRowsCleared));
+	}
+	
+	/**
+	 * Creates a panel that contains the given array of widgets in it.
+	 * 
+	 * @param widgets the widgets to add to the panel.
+	 * @return a new panel that contains the given widgets.
+	 */
+	private Panel createPanel(Widget... widgets) {
+		Panel panel = new FlowPanel();
+		for (Widget w : widgets) {
+			panel.add(w);
+		}
+		return panel;
+	}
+	
+	/**
+	 * Creates a header label.
+	 * 
+	 * @param text
+	 * @return the label wrapped in a h2 tag.
+	 */
+	private Label createHeaderLabel(String text) {
+//		Label label = Label.wrap(DOM.createElement("h2"));
+		Label label = new Label();
+		label.setText(text);
+		return label;
+	}
+}
@@ -15,151 +15,138 @@
  */
 package gwt.g2d.tetris.client;
 
+import gwt.g2d.client.graphics.Color;
 import gwt.g2d.client.graphics.KnownColor;
 import gwt.g2d.client.graphics.LinearGradient;
 import gwt.g2d.client.graphics.Surface;
 import gwt.g2d.client.math.Rectangle;
 import gwt.g2d.client.math.Vector2;
-import gwt.g2d.client.util.Cycle;
 
-import com.google.gwt.event.dom.client.ClickEvent;
-import com.google.gwt.event.dom.client.ClickHandler;
+import com.google.gwt.core.client.GWT;
+import com.google.gwt.core.client.RunAsyncCallback;
 import com.google.gwt.event.dom.client.KeyDownEvent;
 import com.google.gwt.event.dom.client.KeyDownHandler;
 import com.google.gwt.event.dom.client.KeyPressEvent;
 import com.google.gwt.event.dom.client.KeyPressHandler;
-import com.google.gwt.user.client.ui.Button;
+import com.google.gwt.user.client.Random;
 import com.google.gwt.user.client.ui.DockPanel;
-import com.google.gwt.user.client.ui.FlowPanel;
-import com.google.gwt.user.client.ui.Label;
 import com.google.gwt.user.client.ui.Panel;
-import com.google.gwt.user.client.ui.Widget;
 
 /**
  * A game of tetris.
  * 
+ * Only the board and the game loop are part of the initial download; the 
+ * side panel, and the hints once they are turned on with the 'h' key, are 
+ * loaded on demand behind split points.
+ * 
  * @author hao1300@gmail.com
  */
 public class Tetris {
-	private static final int DEFAULT_NUM_ROWS = 20, DEFAULT_NUM_COLS = 10;
 	private static final int BLOCK_PIXEL_SIZE = 24;
-	private static final int DEFAULT_START_ROW = 0, 
-			DEFAULT_START_COL = DEFAULT_NUM_COLS / 2 - Piece.PIECE_SIZE / 2;
-	private static final int ROWS_CLEARED_PER_LEVEL = 30;
+	private static final double HINT_BUDGET_MILLIS = 50;
 	
-	private final TetrisRenderer renderer = new TetrisRenderer();
-	private final Surface nextPieceSurface = new Surface(Piece.PIECE_SIZE * BLOCK_PIXEL_SIZE,
-			Piece.PIECE_SIZE * BLOCK_PIXEL_SIZE);
-	private final Label levelLabel = new Label();
-	private final Label rowsClearedLabel = new Label();
+	private final TetrisRenderer renderer = new TetrisRenderer(
+			TetrisGame.DEFAULT_NUM_ROWS, TetrisGame.DEFAULT_NUM_COLS);
 	private final Panel parentContainer;
 	
+	private final TetrisGame game;
+	
 	private Surface surface;
-	private int currRow, currCol;
-	private Piece currPiece, nextPiece;
-	private TetrisMatrix matrix;
-	private Cycle cycle; 
-	private int level;
-	private int totalRowsCleared;
-	private int levelOffset = 0;
+	// Null until the side panel fragment has been loaded.
+	private SidePanel sidePanel;
+	// Null until hints are first turned on.
+	private HintEngine hintEngine;
+	private boolean showHints;
+	private PieceState hintPiece;
+	private int hintRow, hintCol;
 	private boolean needRedraw = true, needRedrawNextPiece = true;
 	
 	public Tetris(int startingLevel, Panel parentContainer) {
-		surface = new Surface(DEFAULT_NUM_COLS * BLOCK_PIXEL_SIZE, 
-				DEFAULT_NUM_ROWS * BLOCK_PIXEL_SIZE);
+		surface = new Surface(TetrisGame.DEFAULT_NUM_COLS * BLOCK_PIXEL_SIZE, 
+				TetrisGame.DEFAULT_NUM_ROWS * BLOCK_PIXEL_SIZE);
 		this.parentContainer = parentContainer;
-		matrix = new TetrisMatrix(DEFAULT_NUM_ROWS, DEFAULT_NUM_COLS);
-		this.levelOffset = startingLevel;
-		setLevel(startingLevel);
-		setTotalRowsCleared(0);
-		nextPiece = new Piece();
-	}
-	
-	public void initialize() {		
-		DockPanel panel = new DockPanel();
-		parentContainer.add(panel);
-		panel.add(surface, DockPanel.LINE_START);
-		final Button resetButton = new Button("Reset", new ClickHandler() {
+		game = new TetrisGame(startingLevel, new SeededRandom(Random.nextInt()));
+		game.setRotationSystem(RotationSystem.STANDARD);
+		game.setListener(new TetrisGame.Listener() {
 			@Override
-			public void onClick(ClickEvent event) {
-				currPiece = null;
-				nextPiece = new Piece();
-				matrix = new TetrisMatrix(DEFAULT_NUM_ROWS, DEFAULT_NUM_COLS);
-				setLevel(getLevelFromRowsCleared());
-				setTotalRowsCleared(0);
-				surface.setFocus(true);
+			public void onPieceSpawned() {
+				needRedrawNextPiece = true;
 			}
-		});
-		Button previousLevelButton = new Button("Previous level", new ClickHandler() {
+			
 			@Override
-			public void onClick(ClickEvent event) {
-				levelOffset = Math.max(1, levelOffset - 1);
-				resetButton.click();
+			public void onLevelChanged(int level) {
+				setLevel(level);
 			}
-		});
-		Button nextLevelButton = new Button("Next level", new ClickHandler() {
+			
 			@Override
-			public void onClick(ClickEvent event) {
-				levelOffset++;
-				resetButton.click();
+			public void onRowsClearedChanged(int totalRowsCleared) {
+				setTotalRowsCleared(totalRowsCleared);
 			}
 		});
-		
-		Panel nextPiecePanel = createPanel(
-				createPanel(createHeaderLabel("Next Piece"), nextPieceSurface),
-				createPanel(createHeaderLabel("Lines Cleared"), rowsClearedLabel),
-				createPanel(createHeaderLabel("Level"), levelLabel),
-				createPanel(resetButton),
-				createPanel(previousLevelButton),
-				createPanel(nextLevelButton));
-		nextPiecePanel.setStyleName("sidePanel");
-		nextPiecePanel.setHeight(surface.getHeight() + "px");
-		panel.add(nextPiecePanel, DockPanel.LINE_END);
-		
-		nextPieceSurface.fillBackground(KnownColor.BLACK);
+	}
+	
+	public void initialize() {		
+		final DockPanel panel = new DockPanel();
+		parentContainer.add(panel);
+		panel.add(surface, DockPanel.LINE_START);
 		
 		surface.setFocus(true);
 		surface.fillBackground(KnownColor.BLACK);
 		
 		initializeKeyHandlers();
+		
+		GWT.runAsync(new RunAsyncCallback() {
+			@Override
+			public void onFailure(Throwable reason) {
+				// The game is still playable without the side panel.
+				GWT.log("Cannot load the side panel", reason);
+			}
+			
+			@Override
+			public void onSuccess() {
+				sidePanel = new SidePanel(Tetris.this, renderer, BLOCK_PIXEL_SIZE);
+				sidePanel.setHeight(surface.getHeight() + "px");
+				panel.add(sidePanel, DockPanel.LINE_END);
+				setLevel(game.getLevel());
+				setTotalRowsCleared(game.getTotalRowsCleared());
+				needRedrawNextPiece = true;
+			}
+		});
 	}
 
 	public void update() {
-		if (currPiece == null) {
-			currPiece = nextPiece;
-			nextPiece = new Piece();
-			drawNextPiece();
-			currRow = DEFAULT_START_ROW;
-			currCol = DEFAULT_START_COL;
-			cycle = new Cycle(getCountDownTick());
-			matrix.setPiece(currRow, currCol, currPiece);
-			needRedrawNextPiece = true;
+		if (game.update()) {
 			needRedraw = true;
+			requestHint();
 		}
-		
-		if (cycle.cycleTick()) {
-			matrix.removePiece(currRow, currCol, currPiece);
-			currRow++;
-			if (matrix.isValidPiece(currRow, currCol, currPiece)) {
-				matrix.setPiece(currRow, currCol, currPiece);
-				needRedraw = true;
-			} else {
-				// Hits the ground, stopping.
-				currRow--;
-				matrix.setPiece(currRow, currCol, currPiece);
-				int rowsCleared = matrix.checkAndClear(currRow + Piece.PIECE_SIZE);
-				if (rowsCleared > 0) {
-					setTotalRowsCleared(totalRowsCleared + rowsCleared);
-					if (level < getLevelFromRowsCleared()) {
-						setLevel(getLevelFromRowsCleared());
-					}
-				}
-				currPiece = null;
-			}
-		}
+		drawNextPiece();
 		draw();
 	}
 
+	/**
+	 * Restarts the game at the level given by the level offset.
+	 */
+	void reset() {
+		game.reset();
+		needRedraw = true;
+		requestHint();
+		surface.setFocus(true);
+	}
+	
+	/**
+	 * Gets the level the game starts at.
+	 */
+	int getLevelOffset() {
+		return game.getLevelOffset();
+	}
+	
+	/**
+	 * Sets the level the game starts at, effective on the next reset.
+	 */
+	void setLevelOffset(int levelOffset) {
+		game.setLevelOffset(levelOffset);
+	}
+	
 	/**
 	 * Draws the tetris game.
 	 */
@@ -169,72 +156,92 @@ public class Tetris {
 		}
 		surface.clear().fillBackground(KnownColor.BLACK);
 		
-		// Draw the blocks.
-		for (int r = 0; r < matrix.getNumRows(); r++) {
+		// Draw the blocks, the rows above the top row being empty.
+		TetrisMatrix matrix = game.getMatrix();
+		for (int r = matrix.getTopRow(); r < matrix.getNumRows(); r++) {
 			for (int c = 0; c < matrix.getNumCols(); c++) {
 				renderer.drawBlock(surface, r, c, matrix.getBlock(r, c));				
 			}
 		}
+		
+		// Draw the outline of the hint.
+		if (showHints && hintPiece != null) {
+			for (int r = 0; r < Piece.PIECE_SIZE; r++) {
+				for (int c = 0; c < Piece.PIECE_SIZE; c++) {
+					if (hintPiece.getBlock(r, c) != null) {
+						renderer.drawOutline(surface, hintRow + r, hintCol + c);
+					}
+				}
+			}
+		}
 		needRedraw = false;
 	}
 	
 	/**
-	 * Creates a panel that contains the given array of widgets in it.
-	 * 
-	 * @param widgets the widgets to add to the panel.
-	 * @return a new panel that contains the given widgets.
+	 * Turns the hints on or off, loading the hint engine the first time.
 	 */
-	private Panel createPanel(Widget... widgets) {
-		Panel panel = new FlowPanel();
-		for (Widget w : widgets) {
-			panel.add(w);
+	private void toggleHints() {
+		showHints = !showHints;
+		needRedraw = true;
+		if (!showHints) {
+			if (hintEngine != null) {
+				hintEngine.cancel();
+			}
+			return;
 		}
-		return panel;
+		if (hintEngine != null) {
+			requestHint();
+			return;
+		}
+		GWT.runAsync(new RunAsyncCallback() {
+			@Override
+			public void onFailure(Throwable reason) {
+				GWT.log("Cannot load the hints", reason);
+			}
+			
+			@Override
+			public void onSuccess() {
+				hintEngine = new HintEngine(new Evaluator(), HINT_BUDGET_MILLIS, 
+						new HintEngine.Listener() {
+					@Override
+					public void onHint(PieceState piece, int row, int col, 
+							boolean isFinal) {
+						hintPiece = piece;
+						hintRow = row;
+						hintCol = col;
+						needRedraw = true;
+					}
+				});
+				requestHint();
+			}
+		});
 	}
 	
 	/**
-	 * Creates a header label.
-	 * 
-	 * @param text
-	 * @return the label wrapped in a h2 tag.
+	 * Searches a new hint if the current piece has moved or changed, and if 
+	 * hints are on. The last hint is drawn until the new search replaces it,
+	 * unless it is for another piece.
 	 */
-	private Label createHeaderLabel(String text) {
-//		Label label = Label.wrap(DOM.createElement("h2"));
-		Label label = new Label();
-		label.setText(text);
-		return label;
+	private void requestHint() {
+		if (!showHints || hintEngine == null) {
+			return;
+		}
+		if (hintEngine.request(game)) {
+			hintPiece = null;
+		}
 	}
 	
 	/**
 	 * Draws the next piece.
 	 */
 	private void drawNextPiece() {
-		if (!needRedrawNextPiece) {
+		if (!needRedrawNextPiece || sidePanel == null) {
 			return;
 		}
-		nextPieceSurface.clear();
-		for (int r = 0; r < Piece.PIECE_SIZE; r++) {
-			for (int c = 0; c < Piece.PIECE_SIZE; c++) {
-				renderer.drawBlock(nextPieceSurface, r, c, nextPiece.getBlock(r, c));
-			}
-		}
+		sidePanel.drawNextPiece(game.getNextPiece());
 		needRedrawNextPiece = false;
 	}
 
-	/**
-	 * Gets the tick for the count down cycle.
-	 */
-	private int getCountDownTick() {
-		return Math.max(1, 60 - level * 3);
-	}
-	
-	/**
-	 * Gets the level as calculated from the number of rows cleared.
-	 */
-	private int getLevelFromRowsCleared() {
-		return totalRowsCleared / ROWS_CLEARED_PER_LEVEL + levelOffset;
-	}
-	
 	/**
 	 * Initializes the keyboard handlers for the game.
 	 */
@@ -242,18 +249,18 @@ public class Tetris {
 		surface.addKeyPressHandler(new KeyPressHandler() {
 			@Override
 			public void onKeyPress(KeyPressEvent event) {
-				if ((currPiece == null) || (event.getCharCode() != 32)) {
+				if (event.getCharCode() == 'h') {
+					toggleHints();
+					return;
+				}
+				if (event.getCharCode() != 32) {
 					return;
 				}
 				// Rotates the piece.
-				matrix.removePiece(currRow, currCol, currPiece);
-				currPiece.rotateRight();
-				if (!matrix.isValidPiece(currRow, currCol, currPiece)) {
-					currPiece.rotateLeft();
-				} else {
+				if (game.rotate()) {
 					needRedraw = true;
+					requestHint();
 				}
-				matrix.setPiece(currRow, currCol, currPiece);
 			}
 		});
 		
@@ -263,28 +270,21 @@ public class Tetris {
 //				DOM.eventCancelBubble( (Event) event.getNativeEvent(), true );
 				
 				event.getNativeEvent().stopPropagation();
-				if (currPiece == null) {
-					return;
-				}
 				// Moves left or right.
-				int newCol = currCol;
-				int newRow = currRow;
+				int rowOffset = 0, colOffset = 0;
 				if (event.isLeftArrow()) {
-					newCol--;
+					colOffset--;
 				} else if (event.isRightArrow()) {
-					newCol++;
+					colOffset++;
 				} else if (event.isDownArrow()) {
-					newRow++;
+					rowOffset++;
 				} else {
 					return;
 				}
-				matrix.removePiece(currRow, currCol, currPiece);
-				if (matrix.isValidPiece(newRow, newCol, currPiece)) {
-					currRow = newRow;
-					currCol = newCol;
+				if (game.move(rowOffset, colOffset)) {
 					needRedraw = true;
+					requestHint();
 				}
-				matrix.setPiece(currRow, currCol, currPiece);
 			}
 		});
 	}
@@ -293,55 +293,101 @@ public class Tetris {
 	 * Sets the current level.
 	 */
 	private void setLevel(int level) {
-		this.level  = level;
-		levelLabel.setText(((Integer) level).toString());
+		if (sidePanel != null) {
+			sidePanel.setLevel(level);
+		}
 	}
 	
 	/**
 	 * Sets the total number of rows cleared.
 	 */
 	private void setTotalRowsCleared(int totalRowsCleared) {
-		this.totalRowsCleared = totalRowsCleared;
-		rowsClearedLabel.setText(((Integer) totalRowsCleared).toString());
+		if (sidePanel != null) {
+			sidePanel.setTotalRowsCleared(totalRowsCleared);
+		}
 	}
 	
 	/**
 	 * Helper class for rendering a block.
 	 */
-	private static class TetrisRenderer {
+	static class TetrisRenderer {
 		private static final Vector2 STROKE_OFFSET = new Vector2(1);
 		private static final Vector2 FILL_OFFSET = new Vector2(.5);
 		private static final Vector2 GRADIENT_POINT1_OFFSET = new Vector2(0, BLOCK_PIXEL_SIZE);
 		private static final Vector2 GRADIENT_POINT2_OFFSET = new Vector2(BLOCK_PIXEL_SIZE, 0);
-
-		// Temporary variables that are promoted to class variables to avoid 
-		// reconstruction.
-		private Rectangle strokeRectangle = new Rectangle(0, 0, 
-				BLOCK_PIXEL_SIZE - 2, BLOCK_PIXEL_SIZE - 2);
-		private Rectangle fillRectangle = new Rectangle(0, 0, 
-				BLOCK_PIXEL_SIZE - 2, BLOCK_PIXEL_SIZE - 2);
-		private Vector2 position = new Vector2();
+		
+		private final int numCols;
+		// The rectangles and gradients of each cell, created the first time the
+		// cell is drawn so that drawing allocates nothing afterwards.
+		private final Rectangle[] strokeRectangles, fillRectangles;
+		private final LinearGradient[] strokeGradients;
+		private final LinearGradient[][] fillGradients;
+		
+		public TetrisRenderer(int numRows, int numCols) {
+			this.numCols = numCols;
+			strokeRectangles = new Rectangle[numRows * numCols];
+			fillRectangles = new Rectangle[numRows * numCols];
+			strokeGradients = new LinearGradient[numRows * numCols];
+			fillGradients = new LinearGradient[BlockType.values().length][numRows * numCols];
+		}
 				
 		public void drawBlock(Surface surface, int row, int col, BlockType type) {
 			if (type == null) {
 				return;
 			}
-			position.set(col * BLOCK_PIXEL_SIZE, row * BLOCK_PIXEL_SIZE);
-			strokeRectangle.move(position.add(STROKE_OFFSET));
-			surface.setStrokeStyle(new LinearGradient(
-					position.add(GRADIENT_POINT1_OFFSET), 
-					position.add(GRADIENT_POINT2_OFFSET))
-							.addColorStop(0, KnownColor.WHITE)
-							.addColorStop(1, KnownColor.GRAY))
-					.strokeRectangle(strokeRectangle);
-			
-			fillRectangle.move(position.add(FILL_OFFSET));
-			surface.setFillStyle(new LinearGradient(
+			int cell = row * numCols + col;
+			if (strokeRectangles[cell] == null) {
+				createCell(row, col, cell);
+			}
+			LinearGradient fillGradient = fillGradients[type.ordinal()][cell];
+			if (fillGradient == null) {
+				fillGradient = createGradient(row, col, type.getColor(), KnownColor.WHITE);
+				fillGradients[type.ordinal()][cell] = fillGradient;
+			}
+			surface.setStrokeStyle(strokeGradients[cell])
+					.strokeRectangle(strokeRectangles[cell]);
+			surface.setFillStyle(fillGradient)
+					.fillRectangle(fillRectangles[cell]);
+		}
+		
+		/**
+		 * Draws the outline of the given cell.
+		 */
+		public void drawOutline(Surface surface, int row, int col) {
+			int cell = row * numCols + col;
+			if (strokeRectangles[cell] == null) {
+				createCell(row, col, cell);
+			}
+			surface.setStrokeStyle(KnownColor.WHITE)
+					.strokeRectangle(strokeRectangles[cell]);
+		}
+		
+		/**
+		 * Creates the rectangles and the stroke gradient of the given cell.
+		 */
+		private void createCell(int row, int col, int cell) {
+			Vector2 position = new Vector2(col * BLOCK_PIXEL_SIZE, row * BLOCK_PIXEL_SIZE);
+			strokeRectangles[cell] = new Rectangle(0, 0, 
+					BLOCK_PIXEL_SIZE - 2, BLOCK_PIXEL_SIZE - 2);
+			strokeRectangles[cell].move(position.add(STROKE_OFFSET));
+			fillRectangles[cell] = new Rectangle(0, 0, 
+					BLOCK_PIXEL_SIZE - 2, BLOCK_PIXEL_SIZE - 2);
+			fillRectangles[cell].move(position.add(FILL_OFFSET));
+			strokeGradients[cell] = createGradient(row, col, KnownColor.WHITE, 
+					KnownColor.GRAY);
+		}
+		
+		/**
+		 * Creates a diagonal gradient across the given cell.
+		 */
+		private LinearGradient createGradient(int row, int col, Color from, Color to) {
+			Vector2 position = new Vector2(col * BLOCK_PIXEL_SIZE, row * BLOCK_PIXEL_SIZE);
+			LinearGradient gradient = new LinearGradient(
 					position.add(GRADIENT_POINT1_OFFSET), 
-					position.add(GRADIENT_POINT2_OFFSET))
-							.addColorStop(0, type.getColor())
-							.addColorStop(1, KnownColor.WHITE))							
-					.fillRectangle(fillRectangle);
+					position.add(GRADIENT_POINT2_OFFSET));
+			gradient.addColorStop(0, from);
+			gradient.addColorStop(1, to);
+			return gradient;
 		}
 	}
-}
+}
\ No newline at end of file
@@ -0,0 +1,479 @@
+/*
+ * Copyright 2009 Hao Nguyen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwt.g2d.tetris.client;
+
+/**
+ * The rules of a game of tetris: spawning, gravity, movement, locking and
+ * clearing rows. It does not depend on any widget so that it can be driven by
+ * {@link Tetris} in the browser as well as headlessly.
+ */
+public class TetrisGame {
+	public static final int DEFAULT_NUM_ROWS = 20, DEFAULT_NUM_COLS = 10;
+	private static final int DEFAULT_START_ROW = 0, 
+			DEFAULT_START_COL = DEFAULT_NUM_COLS / 2 - Piece.PIECE_SIZE / 2;
+	private static final int ROWS_CLEARED_PER_LEVEL = 30;
+	
+	/**
+	 * The gravity of each level as {rows, ticks}, i.e., the piece falls the 
+	 * given number of rows over the given number of ticks. It takes 
+	 * 60 - 3 * level ticks to fall a row up to level 19, then a row or more 
+	 * per tick, up to falling the height of the matrix at once from level 26.
+	 */
+	private static final int[][] GRAVITY = {
+		{1, 60}, {1, 57}, {1, 54}, {1, 51}, {1, 48},
+		{1, 45}, {1, 42}, {1, 39}, {1, 36}, {1, 33},
+		{1, 30}, {1, 27}, {1, 24}, {1, 21}, {1, 18},
+		{1, 15}, {1, 12}, {1, 9}, {1, 6}, {1, 3},
+		{1, 1}, {3, 2}, {2, 1}, {3, 1}, {5, 1},
+		{10, 1}, {DEFAULT_NUM_ROWS, 1}
+	};
+	
+	/**
+	 * Receives the changes of a game that are of interest to its display.
+	 */
+	public interface Listener {
+		/**
+		 * Called when the next piece becomes the current piece.
+		 */
+		void onPieceSpawned();
+		
+		/**
+		 * Called when the level changes.
+		 */
+		void onLevelChanged(int level);
+		
+		/**
+		 * Called when the total number of rows cleared changes.
+		 */
+		void onRowsClearedChanged(int totalRowsCleared);
+	}
+	
+	/**
+	 * Receives every {@link GameEvent} of a game, e.g., for an audit trail.
+	 * Only primitives are passed so that emitting an event never allocates.
+	 */
+	public interface EventSink {
+		/**
+		 * Called on the thread that updates the game.
+		 * 
+		 * @param type one of the GameEvent types.
+		 * @param frame the number of the frame the event happened in.
+		 * @param arg0 the first argument, see GameEvent.
+		 * @param arg1 the second argument, see GameEvent.
+		 * @param arg2 the third argument, see GameEvent.
+		 */
+		void onEvent(int type, int frame, int arg0, int arg1, int arg2);
+	}
+	
+	private final SeededRandom random;
+	private Listener listener;
+	private EventSink eventSink;
+	private RotationSystem rotationSystem = RotationSystem.NONE;
+	private int currRow, currCol;
+	private PieceState currPiece, nextPiece;
+	private final TetrisMatrix matrix;
+	private int ticks;
+	private int frame;
+	private int level;
+	private int totalRowsCleared;
+	private int levelOffset;
+	private int numPieces;
+	private boolean gameOver;
+	
+	public TetrisGame(int startingLevel, SeededRandom random) {
+		this.random = random;
+		matrix = new TetrisMatrix(DEFAULT_NUM_ROWS, DEFAULT_NUM_COLS);
+		this.levelOffset = startingLevel;
+		setLevel(startingLevel);
+		setTotalRowsCleared(0);
+		nextPiece = createPiece();
+	}
+	
+	/**
+	 * Sets the listener to be notified of the changes of the game.
+	 */
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+	
+	/**
+	 * Sets the sink that receives the events of the game.
+	 */
+	public void setEventSink(EventSink eventSink) {
+		this.eventSink = eventSink;
+	}
+	
+	/**
+	 * Sets how pieces rotate, {@link RotationSystem#NONE} by default.
+	 */
+	public void setRotationSystem(RotationSystem rotationSystem) {
+		this.rotationSystem = rotationSystem;
+	}
+	
+	/**
+	 * Gets how pieces rotate.
+	 */
+	public RotationSystem getRotationSystem() {
+		return rotationSystem;
+	}
+	
+	/**
+	 * Restarts the game at the level given by the level offset.
+	 */
+	public void reset() {
+		currPiece = null;
+		nextPiece = createPiece();
+		matrix.clear();
+		numPieces = 0;
+		gameOver = false;
+		emit(GameEvent.RESET, levelOffset, 0, 0);
+		setLevel(getLevelFromRowsCleared());
+		setTotalRowsCleared(0);
+	}
+	
+	/**
+	 * Advances the game by one tick.
+	 * 
+	 * @return true if the matrix has changed.
+	 */
+	public boolean update() {
+		frame++;
+		boolean changed = false;
+		if (currPiece == null) {
+			spawnPiece();
+			changed = true;
+		}
+		
+		// The gravity counter accumulates the rows the piece has to fall in
+		// units of 1 / getGravityTicks(), so that fractional gravities fall one
+		// row every few ticks and the higher ones several rows per tick.
+		int gravityTicks = getGravityTicks(level);
+		ticks += getGravityRows(level);
+		if (ticks >= gravityTicks) {
+			int rows = ticks / gravityTicks;
+			ticks -= rows * gravityTicks;
+			changed |= dropPiece(rows);
+		}
+		return changed;
+	}
+	
+	/**
+	 * Makes the current piece fall by one row, locking it into the matrix if
+	 * it hits the ground.
+	 * 
+	 * @return true if the piece moved down, false if it was locked.
+	 */
+	public boolean dropPiece() {
+		return dropPiece(1);
+	}
+	
+	/**
+	 * Makes the current piece fall by up to the given number of rows, locking
+	 * it into the matrix if it is already on the ground.
+	 * 
+	 * @param rows the number of rows to fall.
+	 * @return true if the piece moved down, false if it was locked.
+	 */
+	public boolean dropPiece(int rows) {
+		if (currPiece == null) {
+			return false;
+		}
+		matrix.removePiece(currRow, currCol, currPiece);
+		int landingRow = matrix.getLandingRow(currRow, currCol, currPiece);
+		if (landingRow > currRow) {
+			currRow = Math.min(landingRow, currRow + rows);
+			matrix.setPiece(currRow, currCol, currPiece);
+			return true;
+		}
+		
+		// Hits the ground, stopping.
+		matrix.setPiece(currRow, currCol, currPiece);
+		emit(GameEvent.LOCK, currPiece.getIndex(), currRow, currCol);
+		int rowsCleared = matrix.checkAndClear(currRow + Piece.PIECE_SIZE);
+		if (rowsCleared > 0) {
+			setTotalRowsCleared(totalRowsCleared + rowsCleared);
+			emit(GameEvent.CLEAR, rowsCleared, totalRowsCleared, 0);
+			if (level < getLevelFromRowsCleared()) {
+				setLevel(getLevelFromRowsCleared());
+			}
+		}
+		currPiece = null;
+		return false;
+	}
+	
+	/**
+	 * Drops the current piece until it locks.
+	 */
+	public void hardDrop() {
+		while (dropPiece(matrix.getNumRows())) {
+			// Lands at once, then locks.
+		}
+	}
+	
+	/**
+	 * Rotates the current piece to the right, if there is room for it.
+	 * 
+	 * @return true if the piece was rotated.
+	 */
+	public boolean rotate() {
+		return rotate(RotationSystem.CLOCKWISE);
+	}
+	
+	/**
+	 * Rotates the current piece, kicking it according to the rotation system
+	 * if there is no room for it in place.
+	 * 
+	 * @param direction RotationSystem.CLOCKWISE or COUNTER_CLOCKWISE.
+	 * @return true if the piece was rotated.
+	 */
+	public boolean rotate(int direction) {
+		if (currPiece == null) {
+			return false;
+		}
+		matrix.removePiece(currRow, currCol, currPiece);
+		int kick = rotationSystem.findKick(matrix, currRow, currCol, currPiece, 
+				direction);
+		if (kick >= 0) {
+			currRow += rotationSystem.getKickRow(currPiece, direction, kick);
+			currCol += rotationSystem.getKickCol(currPiece, direction, kick);
+			currPiece = RotationSystem.rotate(currPiece, direction);
+		}
+		matrix.setPiece(currRow, currCol, currPiece);
+		return kick >= 0;
+	}
+	
+	/**
+	 * Moves the current piece by the given offset, if there is room for it.
+	 * 
+	 * @param rowOffset
+	 * @param colOffset
+	 * @return true if the piece was moved.
+	 */
+	public boolean move(int rowOffset, int colOffset) {
+		if (currPiece == null) {
+			return false;
+		}
+		int newRow = currRow + rowOffset;
+		int newCol = currCol + colOffset;
+		matrix.removePiece(currRow, currCol, currPiece);
+		boolean isValid = matrix.isValidPiece(newRow, newCol, currPiece);
+		if (isValid) {
+			currRow = newRow;
+			currCol = newCol;
+		}
+		matrix.setPiece(currRow, currCol, currPiece);
+		return isValid;
+	}
+	
+	/**
+	 * Gets the matrix, which contains the current piece while it falls.
+	 */
+	public TetrisMatrix getMatrix() {
+		return matrix;
+	}
+	
+	/**
+	 * Gets the piece that is falling, or null if it has just been locked.
+	 */
+	public PieceState getCurrentPiece() {
+		return currPiece;
+	}
+	
+	/**
+	 * Gets the top-left row of the current piece.
+	 */
+	public int getCurrentRow() {
+		return currRow;
+	}
+	
+	/**
+	 * Gets the top-left column of the current piece.
+	 */
+	public int getCurrentCol() {
+		return currCol;
+	}
+	
+	/**
+	 * Gets the piece that will fall after the current one.
+	 */
+	public PieceState getNextPiece() {
+		return nextPiece;
+	}
+	
+	/**
+	 * Gets the current level.
+	 */
+	public int getLevel() {
+		return level;
+	}
+	
+	/**
+	 * Gets the level the game starts at.
+	 */
+	public int getLevelOffset() {
+		return levelOffset;
+	}
+	
+	/**
+	 * Sets the level the game starts at, effective on the next reset.
+	 */
+	public void setLevelOffset(int levelOffset) {
+		this.levelOffset = levelOffset;
+	}
+	
+	/**
+	 * Gets the total number of rows cleared.
+	 */
+	public int getTotalRowsCleared() {
+		return totalRowsCleared;
+	}
+	
+	/**
+	 * Gets the number of frames the game has been updated for.
+	 */
+	public int getFrame() {
+		return frame;
+	}
+	
+	/**
+	 * Gets the number of pieces spawned so far.
+	 */
+	public int getNumPieces() {
+		return numPieces;
+	}
+	
+	/**
+	 * Whether a piece has spawned on top of the blocks, i.e., the game is lost.
+	 */
+	public boolean isGameOver() {
+		return gameOver;
+	}
+	
+	/**
+	 * Makes the next piece the current piece at the top of the matrix.
+	 */
+	private void spawnPiece() {
+		currPiece = nextPiece;
+		nextPiece = createPiece();
+		currRow = DEFAULT_START_ROW;
+		currCol = DEFAULT_START_COL;
+		ticks = 0;
+		numPieces++;
+		emit(GameEvent.SPAWN, currPiece.getIndex(), currRow, currCol);
+		if (!matrix.isValidPiece(currRow, currCol, currPiece)) {
+			gameOver = true;
+			emit(GameEvent.GAME_OVER, 0, 0, 0);
+		}
+		matrix.setPiece(currRow, currCol, currPiece);
+		if (listener != null) {
+			listener.onPieceSpawned();
+		}
+	}
+	
+	/**
+	 * Gets the gravity counter, i.e., the part of a row the piece has fallen 
+	 * since it last moved down, in units of 1 / getGravityTicks(level).
+	 */
+	int getTicks() {
+		return ticks;
+	}
+	
+	/**
+	 * Gets the state of the random generator of the pieces.
+	 */
+	int getRandomState() {
+		return random.getState();
+	}
+	
+	/**
+	 * Restores the state of the game, but not its matrix, from a slab.
+	 */
+	void restore(GameSlab.View view) {
+		currPiece = view.getCurrentPiece();
+		nextPiece = view.getNextPiece();
+		currRow = view.getCurrentRow();
+		currCol = view.getCurrentCol();
+		level = view.getLevel();
+		levelOffset = view.getLevelOffset();
+		totalRowsCleared = view.getTotalRowsCleared();
+		ticks = view.getTicks();
+		frame = view.getFrame();
+		numPieces = view.getNumPieces();
+		random.setState(view.getRandomState());
+		gameOver = view.isGameOver();
+	}
+	
+	/**
+	 * Sends an event to the event sink, if any.
+	 */
+	private void emit(int type, int arg0, int arg1, int arg2) {
+		if (eventSink != null) {
+			eventSink.onEvent(type, frame, arg0, arg1, arg2);
+		}
+	}
+	
+	/**
+	 * Creates a random piece.
+	 */
+	private PieceState createPiece() {
+		return PieceDefinition.randomPieceDefinition(random).getState(
+				random.nextInt(Piece.PIECE_SIZE));
+	}
+
+	/**
+	 * Gets the number of rows a piece falls every {@link #getGravityTicks}
+	 * ticks at the given level.
+	 */
+	public static int getGravityRows(int level) {
+		return GRAVITY[Math.max(0, Math.min(level, GRAVITY.length - 1))][0];
+	}
+	
+	/**
+	 * Gets the number of ticks it takes a piece to fall 
+	 * {@link #getGravityRows} rows at the given level.
+	 */
+	public static int getGravityTicks(int level) {
+		return GRAVITY[Math.max(0, Math.min(level, GRAVITY.length - 1))][1];
+	}
+	
+	/**
+	 * Gets the level as calculated from the number of rows cleared.
+	 */
+	private int getLevelFromRowsCleared() {
+		return totalRowsCleared / ROWS_CLEARED_PER_LEVEL + levelOffset;
+	}
+	
+	/**
+	 * Sets the current level.
+	 */
+	private void setLevel(int level) {
+		this.level = level;
+		emit(GameEvent.LEVEL, level, 0, 0);
+		if (listener != null) {
+			listener.onLevelChanged(level);
+		}
+	}
+	
+	/**
+	 * Sets the total number of rows cleared.
+	 */
+	private void setTotalRowsCleared(int totalRowsCleared) {
+		this.totalRowsCleared = totalRowsCleared;
+		if (listener != null) {
+			listener.onRowsClearedChanged(totalRowsCleared);
+		}
+	}
+}
@@ -15,22 +15,43 @@
  */
 package gwt.g2d.tetris.client;
 
-import java.util.ArrayList;
-import java.util.List;
-
 /**
  * Stores the information about each block in tetris.
  * 
  * @author hao1300@gmail.com
  */
 public class TetrisMatrix {	
+	/**
+	 * Offset of the positions returned by {@link #findPositions}: a piece may
+	 * stick out of the matrix by up to this many empty rows or columns.
+	 */
+	public static final int POSITION_PAD = Piece.PIECE_SIZE - 1;
+	/** Landing row of a column from which the piece cannot be dropped. */
+	public static final int NO_POSITION = Integer.MIN_VALUE;
+	private static final int MAX_POSITION_COLS = 32 - 2 * POSITION_PAD;
+	
 	private final BlockType[] blocks;
+	// The occupied columns of each row, kept in sync with blocks.
+	private final int[] rowMasks;
 	private final int numRows, numCols;	
+	private final int fullRowMask;
+	// The highest occupied row, numRows if the matrix is empty. The rows above 
+	// it are skipped by the operations on the whole matrix.
+	private int topRow;
+	// Temporary array that is promoted to a class variable to avoid 
+	// reconstruction.
+	private final int[] clearedRows = new int[Piece.PIECE_SIZE + 1];
 
 	public TetrisMatrix(int numRows, int numCols) {
+		if (numCols > 32) {
+			throw new IllegalArgumentException("Too many columns: " + numCols);
+		}
 		this.numRows = numRows;
 		this.numCols = numCols;
 		this.blocks = new BlockType[numRows * numCols];
+		this.rowMasks = new int[numRows];
+		this.fullRowMask = (numCols == 32) ? -1 : (1 << numCols) - 1;
+		this.topRow = numRows;
 	}
 	
 	/**
@@ -47,6 +68,66 @@ public class TetrisMatrix {
 		return numCols;
 	}
 	
+	/**
+	 * Copies the blocks of the given matrix, which must have the same
+	 * dimensions, into this matrix.
+	 * 
+	 * @param other the matrix to copy from.
+	 */
+	public void copyFrom(TetrisMatrix other) {
+		// The rows above both top rows are empty in both matrices.
+		int fromRow = Math.min(topRow, other.topRow);
+		System.arraycopy(other.blocks, fromRow * numCols, blocks, 
+				fromRow * numCols, blocks.length - fromRow * numCols);
+		System.arraycopy(other.rowMasks, fromRow, rowMasks, fromRow, 
+				numRows - fromRow);
+		topRow = other.topRow;
+	}
+	
+	/**
+	 * Empties every cell of the matrix.
+	 */
+	public void clear() {
+		for (int i = topRow * numCols; i < blocks.length; i++) {
+			blocks[i] = null;
+		}
+		for (int r = topRow; r < numRows; r++) {
+			rowMasks[r] = 0;
+		}
+		topRow = numRows;
+	}
+	
+	/**
+	 * Gets the highest occupied row, every row above it being empty.
+	 * 
+	 * @return the highest occupied row, or the number of rows if the matrix
+	 * 				is empty.
+	 */
+	public int getTopRow() {
+		return topRow;
+	}
+	
+	/**
+	 * Gets the number of occupied cells of the given row.
+	 */
+	public int getRowCount(int row) {
+		return Integer.bitCount(rowMasks[row]);
+	}
+	
+	/**
+	 * Checks whether every cell of the given row is occupied.
+	 */
+	public boolean isRowFull(int row) {
+		return rowMasks[row] == fullRowMask;
+	}
+	
+	/**
+	 * Checks whether no cell of the given row is occupied.
+	 */
+	public boolean isRowEmpty(int row) {
+		return rowMasks[row] == 0;
+	}
+	
 	/**
 	 * Gets the information about the block.
 	 * 	
@@ -58,6 +139,17 @@ public class TetrisMatrix {
 		return blocks[row * numCols + col];
 	}
 	
+	/**
+	 * Gets the occupied cells of the given row as a bitmask, where bit c is
+	 * set if the cell at column c is occupied.
+	 * 
+	 * @param row
+	 * @return the bitmask of the occupied columns.
+	 */
+	public int getRowMask(int row) {
+		return rowMasks[row];
+	}
+	
 	/**
 	 * Sets the information about the block.
 	 * 
@@ -67,6 +159,207 @@ public class TetrisMatrix {
 	 */
 	public void setBlock(int row, int col, BlockType type) {
 		blocks[row * numCols + col] = type;
+		if (type == null) {
+			rowMasks[row] &= ~(1 << col);
+			if (row == topRow) {
+				while (topRow < numRows && rowMasks[topRow] == 0) {
+					topRow++;
+				}
+			}
+		} else {
+			rowMasks[row] |= 1 << col;
+			if (row < topRow) {
+				topRow = row;
+			}
+		}
+	}
+	
+	/**
+	 * Finds, in one pass, every position where the given piece state fits,
+	 * and where it lands when dropped straight down from the given row.
+	 * 
+	 * The positions are returned as one bitmask of columns per row: bit 
+	 * (col + POSITION_PAD) of validCols[row + POSITION_PAD] is set if the 
+	 * piece fits with its top-left corner at (row, col).
+	 * 
+	 * @param piece the piece state to place.
+	 * @param startRow the top-left row the piece is dropped from.
+	 * @param validCols receives the valid columns of each row, must have 
+	 * 				numRows + POSITION_PAD elements.
+	 * @param landingRows if not null, receives at (col + POSITION_PAD) the 
+	 * 				top-left row where the piece lands when dropped at col, or 
+	 * 				NO_POSITION if it does not fit at startRow. Must have 
+	 * 				numCols + POSITION_PAD elements.
+	 */
+	public void findPositions(PieceState piece, int startRow, int[] validCols,
+			int[] landingRows) {
+		findValidPositions(rowMasks, numRows, numCols, piece, validCols);
+		if (landingRows == null) {
+			return;
+		}
+		for (int i = 0; i < numCols + POSITION_PAD; i++) {
+			landingRows[i] = NO_POSITION;
+		}
+		int falling = validCols[startRow + POSITION_PAD];
+		for (int row = startRow + 1; falling != 0; row++) {
+			int next = (row < numRows) ? falling & validCols[row + POSITION_PAD] : 0;
+			for (int landed = falling & ~next; landed != 0; landed &= landed - 1) {
+				landingRows[Integer.numberOfTrailingZeros(landed)] = row - 1;
+			}
+			falling = next;
+		}
+	}
+	
+	/**
+	 * Finds the top-left row where a piece that fits at the given position
+	 * lands when dropped straight down. The empty rows at the top of the
+	 * matrix are skipped at once and the rows below are tested a whole row
+	 * of the piece at a time, so a drop of any height costs one query.
+	 *
+	 * @param row the top-left row the piece is dropped from.
+	 * @param col the top-left column of the piece.
+	 * @param piece the piece state to drop, which must fit at (row, col).
+	 * @return the lowest row the piece reaches, row itself if it cannot fall.
+	 */
+	public int getLandingRow(int row, int col, PieceState piece) {
+		int pieceBottom = -1;
+		for (int r = 0; r < Piece.PIECE_SIZE; r++) {
+			if (piece.getRowMask(r) != 0) {
+				pieceBottom = r;
+			}
+		}
+		int landingRow = Math.max(row, topRow - 1 - pieceBottom);
+		while (fitsRowMasks(landingRow + 1, col, piece)) {
+			landingRow++;
+		}
+		return landingRow;
+	}
+	
+	/**
+	 * Checks whether a piece state, whose columns are known to be within the
+	 * matrix, fits at the given row using the row bitmasks.
+	 */
+	private boolean fitsRowMasks(int row, int col, PieceState piece) {
+		for (int r = 0; r < Piece.PIECE_SIZE; r++) {
+			int mask = piece.getRowMask(r);
+			if (mask == 0) {
+				continue;
+			}
+			if (row + r >= numRows) {
+				return false;
+			}
+			if ((rowMasks[row + r] & ((col >= 0) ? mask << col : mask >>> -col)) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Locks a piece into a matrix given as row bitmasks and clears the full
+	 * rows, as {@link #setPiece} followed by {@link #checkAndClear} would.
+	 * 
+	 * @param rowMasks the occupied columns of each row of the matrix.
+	 * @param result receives the rows of the resulting matrix, may be rowMasks.
+	 * @param numRows the number of rows of the matrix.
+	 * @param numCols the number of columns of the matrix.
+	 * @param piece the piece state to lock, which must fit.
+	 * @param row the top-left row of the piece.
+	 * @param col the top-left column of the piece.
+	 * @return the number of rows cleared.
+	 */
+	public static int lockPiece(int[] rowMasks, int[] result, int numRows, 
+			int numCols, PieceState piece, int row, int col) {
+		if (result != rowMasks) {
+			System.arraycopy(rowMasks, 0, result, 0, numRows);
+		}
+		for (int r = 0; r < Piece.PIECE_SIZE; r++) {
+			int mask = piece.getRowMask(r);
+			if (mask != 0) {
+				result[row + r] |= (col >= 0) ? mask << col : mask >>> -col;
+			}
+		}
+		int fullRowMask = (numCols == 32) ? -1 : (1 << numCols) - 1;
+		int toRow = numRows - 1;
+		for (int fromRow = numRows - 1; fromRow >= 0; fromRow--) {
+			if (result[fromRow] != fullRowMask) {
+				result[toRow--] = result[fromRow];
+			}
+		}
+		int rowsCleared = toRow + 1;
+		for (; toRow >= 0; toRow--) {
+			result[toRow] = 0;
+		}
+		return rowsCleared;
+	}
+	
+	/**
+	 * Finds every position where the given piece state fits in a matrix 
+	 * given as row bitmasks. Instead of checking cells one by one, each row
+	 * of the piece is tested against whole rows of the matrix: the columns
+	 * blocked by a cell at offset j of the piece are the occupied columns of
+	 * the matrix shifted by j.
+	 * 
+	 * @param rowMasks the occupied columns of each row of the matrix.
+	 * @param numRows the number of rows of the matrix.
+	 * @param numCols the number of columns of the matrix.
+	 * @param piece the piece state to place.
+	 * @param validCols receives the valid columns of each row, see 
+	 * 				{@link #findPositions}.
+	 */
+	public static void findValidPositions(int[] rowMasks, int numRows, 
+			int numCols, PieceState piece, int[] validCols) {
+		if (numCols > MAX_POSITION_COLS) {
+			throw new IllegalArgumentException("Too many columns: " + numCols);
+		}
+		// Columns outside of the matrix, with column c at bit c + POSITION_PAD.
+		int wallMask = ~(((1 << numCols) - 1) << POSITION_PAD);
+		int candidates = (1 << (numCols + POSITION_PAD)) - 1;
+		
+		// Every position of the piece within the empty rows at the top of the 
+		// matrix is only blocked by the walls.
+		int topRow = 0;
+		while (topRow < numRows && rowMasks[topRow] == 0) {
+			topRow++;
+		}
+		int pieceTop = Piece.PIECE_SIZE, pieceBottom = -1, emptyBlocked = 0;
+		for (int r = 0; r < Piece.PIECE_SIZE; r++) {
+			int mask = piece.getRowMask(r);
+			if (mask != 0) {
+				pieceTop = Math.min(pieceTop, r);
+				pieceBottom = r;
+			}
+			for (int j = 0; mask != 0; j++, mask >>>= 1) {
+				if ((mask & 1) != 0) {
+					emptyBlocked |= wallMask >>> j;
+				}
+			}
+		}
+		for (int row = -POSITION_PAD; row < numRows; row++) {
+			if (row + pieceTop >= 0 && row + pieceBottom < topRow) {
+				validCols[row + POSITION_PAD] = ~emptyBlocked & candidates;
+				continue;
+			}
+			int blocked = 0;
+			for (int r = 0; r < Piece.PIECE_SIZE; r++) {
+				int mask = piece.getRowMask(r);
+				if (mask == 0) {
+					continue;
+				}
+				int matrixRow = row + r;
+				if (matrixRow < 0 || matrixRow >= numRows) {
+					blocked = -1;
+					break;
+				}
+				int padded = (rowMasks[matrixRow] << POSITION_PAD) | wallMask;
+				for (int j = 0; mask != 0; j++, mask >>>= 1) {
+					if ((mask & 1) != 0) {
+						blocked |= padded >>> j;
+					}
+				}
+			}
+			validCols[row + POSITION_PAD] = ~blocked & candidates;
+		}
 	}
 	
 	/**
@@ -78,6 +371,19 @@ public class TetrisMatrix {
 	 * @return true if the piece can fit into the given position.
 	 */
 	public boolean isValidPiece(int row, int col, Piece piece) {
+		return isValidPiece(row, col, piece.getState());
+	}
+	
+	/**
+	 * Checks whether the given piece state can fit into the given top-left 
+	 * corner.
+	 * 
+	 * @param row
+	 * @param col
+	 * @param piece
+	 * @return true if the piece can fit into the given position.
+	 */
+	public boolean isValidPiece(int row, int col, PieceState piece) {
 		for (int r = 0; r < Piece.PIECE_SIZE; r++) {
 			for (int c = 0; c < Piece.PIECE_SIZE; c++) {
 				BlockType type = piece.getBlock(r, c);
@@ -108,6 +414,17 @@ public class TetrisMatrix {
 	 * @param piece
 	 */
 	public void setPiece(int row, int col, Piece piece) {
+		setPiece(row, col, piece.getState());
+	}
+	
+	/**
+	 * Sets the piece state into the given top-left position.
+	 * 
+	 * @param row
+	 * @param col
+	 * @param piece
+	 */
+	public void setPiece(int row, int col, PieceState piece) {
 		for (int r = 0; r < Piece.PIECE_SIZE; r++) {
 			for (int c = 0; c < Piece.PIECE_SIZE; c++) {
 				BlockType type = piece.getBlock(r, c);
@@ -127,6 +444,17 @@ public class TetrisMatrix {
 	 * @param piece
 	 */
 	public void removePiece(int row, int col, Piece piece) {
+		removePiece(row, col, piece.getState());
+	}
+	
+	/**
+	 * Removes the piece state from the given top-left position.
+	 * 
+	 * @param row
+	 * @param col
+	 * @param piece
+	 */
+	public void removePiece(int row, int col, PieceState piece) {
 		for (int r = 0; r < Piece.PIECE_SIZE; r++) {
 			for (int c = 0; c < Piece.PIECE_SIZE; c++) {
 				if (piece.getBlock(r, c) == null) {
@@ -147,37 +475,40 @@ public class TetrisMatrix {
 		row = Math.min(row, numRows - 1);
 		
 		// Find the cleared rows.
-		List<Integer> clearedRows = new ArrayList<Integer>(); 
-		for (int r = row; r >= row - Piece.PIECE_SIZE; r--) {
-			boolean isRowCleared = true;
-			for (int c = 0; c < numCols; c++) {
-				if (getBlock(r, c) == null) {
-					isRowCleared = false;
-					break;
-				}
-			}
-			if (isRowCleared) {
-				clearedRows.add(r);
+		int numClearedRows = 0;
+		for (int r = row; r >= row - Piece.PIECE_SIZE && r >= topRow; r--) {
+			if (isRowFull(r)) {
+				clearedRows[numClearedRows++] = r;
 			}
 		}
 		
-		if (clearedRows.isEmpty()) {
+		if (numClearedRows == 0) {
 			return 0;
 		}
 		
-		// Moves the rows down to fill up the cleared rows.
-		for (int i = 0, toRow = clearedRows.get(i), fromRow = toRow - 1; 
-				toRow >= 0; fromRow--) {
-			if ((i < clearedRows.size() - 1) 
-					&& (fromRow == clearedRows.get(i + 1))) {
+		// Moves the rows down to fill up the cleared rows, stopping at the top
+		// row since the rows above it are empty.
+		int toRow = clearedRows[0];
+		for (int i = 1, fromRow = toRow - 1; fromRow >= topRow; fromRow--) {
+			if (i < numClearedRows && fromRow == clearedRows[i]) {
 				i++;
 				continue;
 			}
-			for (int c = 0; c < numCols; c++) {
-				setBlock(toRow, c, (fromRow < 0) ? null : getBlock(fromRow, c));
-			}
+			System.arraycopy(blocks, fromRow * numCols, blocks, toRow * numCols, 
+					numCols);
+			rowMasks[toRow] = rowMasks[fromRow];
 			toRow--;
 		}
-		return clearedRows.size();
+		for (; toRow >= topRow; toRow--) {
+			for (int i = toRow * numCols; i < (toRow + 1) * numCols; i++) {
+				blocks[i] = null;
+			}
+			rowMasks[toRow] = 0;
+		}
+		topRow += numClearedRows;
+		while (topRow < numRows && rowMasks[topRow] == 0) {
+			topRow++;
+		}
+		return numClearedRows;
 	}
 }
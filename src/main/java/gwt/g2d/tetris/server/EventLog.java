@@ -0,0 +1,328 @@
+/*
+ * Copyright 2009 Hao Nguyen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwt.g2d.tetris.server;
+
+import gwt.g2d.tetris.client.GameEvent;
+import gwt.g2d.tetris.client.TetrisGame;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An append-only log of {@link GameEvent}s.
+ * 
+ * Events are written as fixed-size records into a preallocated ring buffer
+ * by the game thread, which never blocks nor allocates: when the buffer is
+ * full the event is dropped and counted. A background thread drains the ring
+ * in batches into segment files named segment-NNNNNNNN.log, starting a new 
+ * segment once the current one reaches the configured size.
+ * 
+ * If writing fails, the writer thread stops and the log is failed: 
+ * {@link #isFailed} becomes true, and the events appended afterwards are 
+ * rejected rather than counted as dropped, so that the owner of the log can 
+ * tell a dead disk from back-pressure.
+ * 
+ * Each record is RECORD_SIZE big-endian bytes: the time in milliseconds 
+ * (long), the game id, the frame, the event type and its three arguments 
+ * (ints).
+ * 
+ * There must be a single thread emitting events, e.g., the server tick 
+ * thread that updates all the games of the log.
+ */
+public class EventLog {
+	public static final int RECORD_SIZE = 32;
+	private static final int RECORD_INTS = RECORD_SIZE / 4;
+	private static final long IDLE_PARK_NANOS = 1000000L;
+	
+	/**
+	 * When the segment files are flushed to the disk.
+	 */
+	public enum FsyncPolicy {
+		/** Leaves it to the operating system. */
+		NEVER,
+		/** After every batch written, the safest and slowest. */
+		EVERY_BATCH,
+		/** When a segment is complete, and when the log is closed. */
+		ON_ROTATE,
+	}
+	
+	private final File directory;
+	private final long segmentBytes;
+	private final FsyncPolicy fsyncPolicy;
+	private final int mask;
+	private final int[] ring;
+	private final ByteBuffer batch;
+	private final Thread writer;
+	
+	// Written by the game thread only.
+	private long tail, cachedHead;
+	private final AtomicLong publishedTail = new AtomicLong();
+	private final AtomicLong droppedEvents = new AtomicLong();
+	// Written by the writer thread only.
+	private final AtomicLong head = new AtomicLong();
+	private FileChannel channel;
+	private int segmentNumber;
+	private long bytesInSegment;
+	
+	private volatile boolean running = true;
+	private volatile IOException failure;
+	
+	/**
+	 * Creates a log and starts its writer thread.
+	 * 
+	 * @param directory the directory of the segment files, new segments are
+	 * 				numbered after the existing ones.
+	 * @param capacity the number of records of the ring buffer, rounded up to a
+	 * 				power of two.
+	 * @param batchRecords the maximum number of records written at once.
+	 * @param segmentBytes the size after which a new segment is started.
+	 * @param fsyncPolicy when the segments are flushed to the disk.
+	 */
+	public EventLog(File directory, int capacity, int batchRecords, 
+			long segmentBytes, FsyncPolicy fsyncPolicy) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create " + directory);
+		}
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.fsyncPolicy = fsyncPolicy;
+		int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		mask = size - 1;
+		ring = new int[size * RECORD_INTS];
+		batch = ByteBuffer.allocateDirect(batchRecords * RECORD_SIZE);
+		segmentNumber = findLastSegment();
+		openNextSegment();
+		
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					drain();
+				} catch (IOException e) {
+					failure = e;
+				}
+			}
+		}, "EventLog writer " + directory);
+		writer.setDaemon(true);
+		writer.start();
+	}
+	
+	/**
+	 * Creates the sink that logs the events of the given game. The sink should
+	 * be created once per game and reused.
+	 */
+	public TetrisGame.EventSink forGame(final int gameId) {
+		return new TetrisGame.EventSink() {
+			@Override
+			public void onEvent(int type, int frame, int arg0, int arg1, int arg2) {
+				append(gameId, type, frame, arg0, arg1, arg2);
+			}
+		};
+	}
+	
+	/**
+	 * Appends an event to the ring buffer without blocking.
+	 * 
+	 * @return false if the buffer was full and the event was dropped, or if 
+	 * 				the log has failed.
+	 */
+	public boolean append(int gameId, int type, int frame, int arg0, int arg1, 
+			int arg2) {
+		if (failure != null) {
+			return false;
+		}
+		if (tail - cachedHead > mask) {
+			cachedHead = head.get();
+			if (tail - cachedHead > mask) {
+				droppedEvents.lazySet(droppedEvents.get() + 1);
+				return false;
+			}
+		}
+		int i = ((int) tail & mask) * RECORD_INTS;
+		long time = System.currentTimeMillis();
+		ring[i] = (int) (time >>> 32);
+		ring[i + 1] = (int) time;
+		ring[i + 2] = gameId;
+		ring[i + 3] = frame;
+		ring[i + 4] = type;
+		ring[i + 5] = arg0;
+		ring[i + 6] = arg1;
+		ring[i + 7] = arg2;
+		publishedTail.lazySet(++tail);
+		return true;
+	}
+	
+	/**
+	 * Gets the number of events dropped because the ring buffer was full.
+	 */
+	public long getDroppedEvents() {
+		return droppedEvents.get();
+	}
+	
+	/**
+	 * Whether the writer thread has stopped because writing failed, after 
+	 * which no more events are logged.
+	 */
+	public boolean isFailed() {
+		return failure != null;
+	}
+	
+	/**
+	 * Gets the error that stopped the writer thread, or null if it has not 
+	 * failed.
+	 */
+	public IOException getFailure() {
+		return failure;
+	}
+	
+	/**
+	 * Writes the remaining events, flushes the current segment unless the 
+	 * policy is NEVER, and stops the writer thread.
+	 * 
+	 * @throws IOException if the writer thread has failed.
+	 */
+	public void close() throws IOException, InterruptedException {
+		running = false;
+		LockSupport.unpark(writer);
+		writer.join();
+		if (failure != null) {
+			throw failure;
+		}
+	}
+	
+	/**
+	 * The loop of the writer thread.
+	 */
+	private void drain() throws IOException {
+		try {
+			long position = head.get();
+			int batchRecords = batch.capacity() / RECORD_SIZE;
+			while (true) {
+				long available = publishedTail.get() - position;
+				if (available == 0) {
+					if (!running) {
+						break;
+					}
+					LockSupport.parkNanos(IDLE_PARK_NANOS);
+					continue;
+				}
+				int count = (int) Math.min(available, batchRecords);
+				batch.clear();
+				for (int n = 0; n < count; n++, position++) {
+					int i = ((int) position & mask) * RECORD_INTS;
+					batch.putLong(((long) ring[i] << 32) | (ring[i + 1] & 0xFFFFFFFFL));
+					for (int k = 2; k < RECORD_INTS; k++) {
+						batch.putInt(ring[i + k]);
+					}
+				}
+				head.lazySet(position);
+				batch.flip();
+				while (batch.hasRemaining()) {
+					channel.write(batch);
+				}
+				bytesInSegment += count * RECORD_SIZE;
+				if (fsyncPolicy == FsyncPolicy.EVERY_BATCH) {
+					channel.force(false);
+				}
+				if (bytesInSegment >= segmentBytes) {
+					closeSegment();
+					openNextSegment();
+				}
+			}
+		} finally {
+			closeSegment();
+		}
+	}
+	
+	private void openNextSegment() throws IOException {
+		segmentNumber++;
+		File file = new File(directory, getSegmentName(segmentNumber));
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		channel.position(channel.size());
+		bytesInSegment = channel.size();
+	}
+	
+	private void closeSegment() throws IOException {
+		if (channel == null) {
+			return;
+		}
+		if (fsyncPolicy != FsyncPolicy.NEVER) {
+			channel.force(false);
+		}
+		channel.close();
+		channel = null;
+	}
+	
+	/**
+	 * Gets the number of the last segment in the directory, or 0 if none.
+	 */
+	private int findLastSegment() {
+		int last = 0;
+		String[] names = directory.list();
+		for (String name : names) {
+			if (name.startsWith("segment-") && name.endsWith(".log")) {
+				try {
+					last = Math.max(last, Integer.parseInt(
+							name.substring("segment-".length(), name.length() - 4)));
+				} catch (NumberFormatException e) {
+					// Not one of ours.
+				}
+			}
+		}
+		return last;
+	}
+	
+	private static String getSegmentName(int number) {
+		return String.format("segment-%08d.log", number);
+	}
+	
+	/**
+	 * Prints the records of the given segment files.
+	 */
+	public static void main(String[] args) throws IOException {
+		for (String path : args) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(path)));
+			try {
+				while (true) {
+					long time;
+					try {
+						time = in.readLong();
+					} catch (EOFException e) {
+						break;
+					}
+					int gameId = in.readInt();
+					int frame = in.readInt();
+					int type = in.readInt();
+					System.out.println(time + " game " + gameId + " frame " + frame 
+							+ " " + GameEvent.getName(type) + " " + in.readInt() + " " 
+							+ in.readInt() + " " + in.readInt());
+				}
+			} finally {
+				in.close();
+			}
+		}
+	}
+}
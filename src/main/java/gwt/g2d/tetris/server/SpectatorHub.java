@@ -0,0 +1,475 @@
+/*
+ * Copyright 2009 Hao Nguyen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwt.g2d.tetris.server;
+
+import gwt.g2d.tetris.client.BlockType;
+import gwt.g2d.tetris.client.PieceState;
+import gwt.g2d.tetris.client.TetrisGame;
+import gwt.g2d.tetris.client.TetrisMatrix;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams the state of live games to spectators.
+ * 
+ * Each state of a game is encoded once, by the thread that publishes it, 
+ * into a frame that is shared by all the viewers of the game. A single hub 
+ * thread writes the frames to the viewers with non-blocking I/O. A viewer 
+ * that cannot keep up is never queued more than one frame: once it has 
+ * received the frame being written, it gets the latest state of the game 
+ * and the states in between are skipped.
+ * 
+ * The frames are direct buffers, which the channels write without copying
+ * them into a temporary direct buffer for every viewer, and each stream 
+ * reuses its frames once they are neither the latest one nor being written
+ * to any viewer. A stream thus only allocates frames while it has more 
+ * viewers behind than frames.
+ * 
+ * A viewer connects and sends the id of the game (int). It then receives 
+ * frames of FRAME_SIZE big-endian bytes: the frame number, the level, the 
+ * number of rows cleared (ints), whether the game is over, the index of the
+ * next piece definition or -1, two reserved bytes, and for each row of the 
+ * matrix an int holding 3 bits per column, 0 for an empty cell and the 
+ * ordinal of the {@link BlockType} plus one otherwise. The matrices are
+ * {@link TetrisGame#DEFAULT_NUM_ROWS} by {@link TetrisGame#DEFAULT_NUM_COLS}.
+ */
+public class SpectatorHub {
+	private static final int BITS_PER_BLOCK = 3;
+	private static final int NUM_ROWS = TetrisGame.DEFAULT_NUM_ROWS, 
+			NUM_COLS = TetrisGame.DEFAULT_NUM_COLS;
+	public static final int FRAME_SIZE = 16 + 4 * NUM_ROWS;
+	private static final int BACKLOG = 1024;
+	private static final int INITIAL_FRAMES = 4;
+	
+	private final Selector selector;
+	private final ServerSocketChannel server;
+	private final Thread thread;
+	private final ConcurrentHashMap<Integer, Stream> streams = 
+			new ConcurrentHashMap<Integer, Stream>();
+	private final ConcurrentLinkedQueue<Stream> changedStreams = 
+			new ConcurrentLinkedQueue<Stream>();
+	private volatile boolean running = true;
+	private volatile IOException failure;
+	
+	/**
+	 * An encoded state of a game. It is only written by the publishing thread
+	 * while no viewer can take it, and only read by the hub thread while it
+	 * has writers.
+	 */
+	private static class Frame {
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(FRAME_SIZE);
+		// The number of viewers the frame is being written to.
+		final AtomicInteger writers = new AtomicInteger();
+		long sequence;
+	}
+	
+	/**
+	 * The states of a game, published by the thread that updates it, which 
+	 * must be the same thread for every state.
+	 */
+	public class Stream {
+		private final int gameId;
+		private final AtomicBoolean changed = new AtomicBoolean();
+		private volatile Frame latest;
+		// Used by the publishing thread only.
+		private Frame[] frames = new Frame[INITIAL_FRAMES];
+		private int numFrames;
+		private long nextSequence;
+		// Used by the hub thread only.
+		private final List<Viewer> viewers = new ArrayList<Viewer>();
+		private volatile int numViewers;
+		private volatile long sentFrames, skippedFrames;
+		
+		Stream(int gameId) {
+			this.gameId = gameId;
+		}
+		
+		/**
+		 * Encodes the current state of the game and hands it to the hub.
+		 */
+		public void publish(TetrisGame game) {
+			Frame frame = getFreeFrame();
+			ByteBuffer buffer = frame.buffer;
+			buffer.clear();
+			buffer.putInt(game.getFrame());
+			buffer.putInt(game.getLevel());
+			buffer.putInt(game.getTotalRowsCleared());
+			buffer.put((byte) (game.isGameOver() ? 1 : 0));
+			PieceState next = game.getNextPiece();
+			buffer.put((byte) (next == null ? -1 
+					: next.getPieceDefinition().getIndex()));
+			buffer.putShort((short) 0);
+			TetrisMatrix matrix = game.getMatrix();
+			for (int r = 0; r < NUM_ROWS; r++) {
+				int types = 0;
+				for (int c = 0; c < NUM_COLS; c++) {
+					BlockType type = matrix.getBlock(r, c);
+					if (type != null) {
+						types |= (type.ordinal() + 1) << (c * BITS_PER_BLOCK);
+					}
+				}
+				buffer.putInt(types);
+			}
+			buffer.flip();
+			frame.sequence = nextSequence++;
+			latest = frame;
+			if (changed.compareAndSet(false, true)) {
+				changedStreams.add(this);
+				selector.wakeup();
+			}
+		}
+		
+		/**
+		 * Gets a frame that is neither the latest one nor being written to any
+		 * viewer, creating one if there is none.
+		 */
+		private Frame getFreeFrame() {
+			Frame current = latest;
+			for (int i = 0; i < numFrames; i++) {
+				if (frames[i] != current && frames[i].writers.get() == 0) {
+					return frames[i];
+				}
+			}
+			if (numFrames == frames.length) {
+				Frame[] grown = new Frame[frames.length * 2];
+				System.arraycopy(frames, 0, grown, 0, numFrames);
+				frames = grown;
+			}
+			frames[numFrames] = new Frame();
+			return frames[numFrames++];
+		}
+		
+		/**
+		 * Gets the latest frame and counts the calling viewer as one of its 
+		 * writers, which keeps it from being reused until released.
+		 * 
+		 * @return the frame, or null if none has been published yet.
+		 */
+		private Frame acquireLatest() {
+			while (true) {
+				Frame frame = latest;
+				if (frame == null) {
+					return null;
+				}
+				frame.writers.incrementAndGet();
+				// The publisher may have reused the frame before it was counted.
+				if (latest == frame) {
+					return frame;
+				}
+				frame.writers.decrementAndGet();
+			}
+		}
+		
+		/**
+		 * Gets the number of frames allocated by the stream.
+		 */
+		public int getNumFrames() {
+			return numFrames;
+		}
+		
+		public int getGameId() {
+			return gameId;
+		}
+		
+		/**
+		 * Gets the number of connected viewers.
+		 */
+		public int getNumViewers() {
+			return numViewers;
+		}
+		
+		/**
+		 * Gets the number of frames written in full to the viewers.
+		 */
+		public long getSentFrames() {
+			return sentFrames;
+		}
+		
+		/**
+		 * Gets the number of frames skipped for viewers that were behind.
+		 */
+		public long getSkippedFrames() {
+			return skippedFrames;
+		}
+	}
+	
+	/**
+	 * A connection, which is a viewer once it has sent its game id.
+	 */
+	private static class Viewer {
+		final SocketChannel channel;
+		final ByteBuffer request = ByteBuffer.allocate(4);
+		SelectionKey key;
+		Stream stream;
+		int index;
+		// The sequence of the last frame taken, -1 if none.
+		long lastSequence = -1;
+		// The frame being written and its position, null if none.
+		Frame frame;
+		ByteBuffer sending;
+		
+		Viewer(SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+	
+	/**
+	 * Creates a hub listening on the given address and starts its thread.
+	 */
+	public SpectatorHub(InetSocketAddress address) throws IOException {
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.configureBlocking(false);
+		server.socket().bind(address, BACKLOG);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					serve();
+				} catch (IOException e) {
+					failure = e;
+				}
+			}
+		}, "SpectatorHub " + address);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Gets the port the hub listens on.
+	 */
+	public int getPort() {
+		return server.socket().getLocalPort();
+	}
+	
+	/**
+	 * Gets the stream of the given game, creating it if needed.
+	 */
+	public Stream getStream(int gameId) {
+		Stream stream = streams.get(gameId);
+		if (stream == null) {
+			Stream created = new Stream(gameId);
+			stream = streams.putIfAbsent(gameId, created);
+			if (stream == null) {
+				stream = created;
+			}
+		}
+		return stream;
+	}
+	
+	/**
+	 * Disconnects the viewers of a finished game.
+	 */
+	public void removeStream(int gameId) {
+		Stream stream = streams.remove(gameId);
+		if (stream != null && stream.changed.compareAndSet(false, true)) {
+			changedStreams.add(stream);
+			selector.wakeup();
+		}
+	}
+	
+	/**
+	 * Disconnects all the viewers and stops the hub thread.
+	 * 
+	 * @throws IOException if the hub thread has failed.
+	 */
+	public void close() throws IOException, InterruptedException {
+		running = false;
+		selector.wakeup();
+		thread.join();
+		if (failure != null) {
+			throw failure;
+		}
+	}
+	
+	/**
+	 * The loop of the hub thread.
+	 */
+	private void serve() throws IOException {
+		try {
+			while (running) {
+				selector.select();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					Viewer viewer = (Viewer) key.attachment();
+					if (key.isReadable()) {
+						read(viewer);
+					}
+					if (key.isValid() && key.isWritable()) {
+						send(viewer);
+					}
+				}
+				Stream stream;
+				while ((stream = changedStreams.poll()) != null) {
+					stream.changed.set(false);
+					if (streams.get(stream.gameId) != stream) {
+						while (!stream.viewers.isEmpty()) {
+							disconnect(stream.viewers.get(stream.viewers.size() - 1));
+						}
+						continue;
+					}
+					List<Viewer> viewers = stream.viewers;
+					for (int i = viewers.size() - 1; i >= 0; i--) {
+						Viewer viewer = viewers.get(i);
+						if (viewer.sending == null) {
+							send(viewer);
+						}
+					}
+				}
+			}
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				key.channel().close();
+			}
+			selector.close();
+		}
+	}
+	
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = server.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			Viewer viewer = new Viewer(channel);
+			viewer.key = channel.register(selector, SelectionKey.OP_READ, viewer);
+		}
+	}
+	
+	/**
+	 * Reads the game id of a new viewer. Anything sent afterwards is ignored.
+	 */
+	private void read(Viewer viewer) {
+		try {
+			ByteBuffer request = viewer.request;
+			if (viewer.stream != null) {
+				request.clear();
+			}
+			if (viewer.channel.read(request) < 0) {
+				disconnect(viewer);
+				return;
+			}
+			if (viewer.stream == null && !request.hasRemaining()) {
+				Stream stream = streams.get(request.getInt(0));
+				if (stream == null) {
+					disconnect(viewer);
+					return;
+				}
+				viewer.stream = stream;
+				viewer.index = stream.viewers.size();
+				stream.viewers.add(viewer);
+				stream.numViewers = stream.viewers.size();
+				send(viewer);
+			}
+		} catch (IOException e) {
+			disconnect(viewer);
+		}
+	}
+	
+	/**
+	 * Writes the rest of the current frame of a viewer, and then the latest 
+	 * frame of its game for as long as the socket accepts them.
+	 */
+	private void send(Viewer viewer) {
+		Stream stream = viewer.stream;
+		try {
+			while (true) {
+				if (viewer.sending == null) {
+					Frame frame = stream.acquireLatest();
+					if (frame != null && frame.sequence == viewer.lastSequence) {
+						frame.writers.decrementAndGet();
+						frame = null;
+					}
+					if (frame == null) {
+						viewer.key.interestOps(SelectionKey.OP_READ);
+						return;
+					}
+					if (viewer.lastSequence >= 0) {
+						stream.skippedFrames += 
+								frame.sequence - viewer.lastSequence - 1;
+					}
+					viewer.lastSequence = frame.sequence;
+					viewer.frame = frame;
+					viewer.sending = frame.buffer.duplicate();
+				}
+				viewer.channel.write(viewer.sending);
+				if (viewer.sending.hasRemaining()) {
+					viewer.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+				release(viewer);
+				stream.sentFrames++;
+			}
+		} catch (IOException e) {
+			disconnect(viewer);
+		}
+	}
+	
+	/**
+	 * Lets the frame being written to a viewer be reused.
+	 */
+	private static void release(Viewer viewer) {
+		if (viewer.frame != null) {
+			viewer.frame.writers.decrementAndGet();
+			viewer.frame = null;
+			viewer.sending = null;
+		}
+	}
+	
+	private void disconnect(Viewer viewer) {
+		release(viewer);
+		Stream stream = viewer.stream;
+		if (stream != null) {
+			// Swaps the last viewer into the slot of the removed one.
+			List<Viewer> viewers = stream.viewers;
+			Viewer last = viewers.remove(viewers.size() - 1);
+			if (last != viewer) {
+				last.index = viewer.index;
+				viewers.set(viewer.index, last);
+			}
+			stream.numViewers = viewers.size();
+			viewer.stream = null;
+		}
+		viewer.key.cancel();
+		try {
+			viewer.channel.close();
+		} catch (IOException e) {
+			// Already gone.
+		}
+	}
+}
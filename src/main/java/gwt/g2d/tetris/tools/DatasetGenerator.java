@@ -0,0 +1,203 @@
+/*
+ * Copyright 2009 Hao Nguyen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwt.g2d.tetris.tools;
+
+import gwt.g2d.tetris.client.Bot;
+import gwt.g2d.tetris.client.Evaluator;
+import gwt.g2d.tetris.client.PlacementSearch;
+import gwt.g2d.tetris.client.SeededRandom;
+import gwt.g2d.tetris.client.TetrisGame;
+import gwt.g2d.tetris.client.TetrisMatrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generates {@link PositionDataset} files from headless self-play: every 
+ * piece of every game is a position, recorded with the placement the 
+ * {@link Bot} chose for it. The outcome of a position is the number of rows
+ * the game cleared from that position until it was lost or stopped.
+ * 
+ * Each thread plays its own games and writes its own file, named
+ * positions-NNN.dat, which are then read back through memory mapping to
+ * check the number of positions.
+ * 
+ * Usage: DatasetGenerator directory [positions] [threads] [maxPieces] 
+ * [rowGroupSize]
+ */
+public class DatasetGenerator {
+	private static final int STARTING_LEVEL = 1;
+	
+	private final File directory;
+	private final int maxPieces, rowGroupSize;
+	
+	public DatasetGenerator(File directory, int maxPieces, int rowGroupSize) {
+		this.directory = directory;
+		this.maxPieces = maxPieces;
+		this.rowGroupSize = rowGroupSize;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: DatasetGenerator directory [positions] "
+					+ "[threads] [maxPieces] [rowGroupSize]");
+			System.exit(1);
+		}
+		File directory = new File(args[0]);
+		long positions = (args.length > 1) ? Long.parseLong(args[1]) : 1000000L;
+		int threads = ToolArgs.intArg(args, 2, 
+				Runtime.getRuntime().availableProcessors());
+		DatasetGenerator generator = new DatasetGenerator(directory, 
+				ToolArgs.intArg(args, 3, 1000), ToolArgs.intArg(args, 4, 65536));
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create " + directory);
+		}
+		
+		long start = System.nanoTime();
+		List<File> files = generator.generate(positions, threads);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println("Generated " + positions + " positions in " 
+				+ seconds + " s, " + (long) (positions / seconds * 60) 
+				+ " positions/min");
+		
+		start = System.nanoTime();
+		long read = 0, rowsCleared = 0;
+		for (File file : files) {
+			PositionDataset dataset = PositionDataset.open(file);
+			for (int g = 0; g < dataset.getNumRowGroups(); g++) {
+				PositionDataset.RowGroup rowGroup = dataset.getRowGroup(g);
+				for (int i = 0; i < rowGroup.size(); i++) {
+					rowsCleared += rowGroup.getRowsCleared(i);
+				}
+				read += rowGroup.size();
+			}
+		}
+		seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println("Read " + read + " positions (" + rowsCleared 
+				+ " rows cleared) in " + seconds + " s");
+		if (read < positions) {
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Plays games on the given number of threads until at least the given 
+	 * number of positions are written.
+	 * 
+	 * @return the files written.
+	 */
+	public List<File> generate(long positions, int threads) 
+			throws IOException, InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<File>> futures = new ArrayList<Future<File>>(threads);
+			for (int i = 0; i < threads; i++) {
+				final int worker = i, numWorkers = threads;
+				final long workerPositions = positions / threads 
+						+ (i < positions % threads ? 1 : 0);
+				futures.add(executor.submit(new Callable<File>() {
+					@Override
+					public File call() throws IOException {
+						return generate(worker, numWorkers, workerPositions);
+					}
+				}));
+			}
+			List<File> files = new ArrayList<File>(threads);
+			for (Future<File> future : futures) {
+				try {
+					files.add(future.get());
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException) {
+						throw (IOException) e.getCause();
+					}
+					throw new RuntimeException(e.getCause());
+				}
+			}
+			return files;
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	/**
+	 * Writes the positions of one worker, whose games have the seeds worker+1,
+	 * worker+1+threads, ...
+	 */
+	private File generate(int worker, int threads, long positions) throws IOException {
+		File file = new File(directory, String.format("positions-%03d.dat", worker));
+		int numRows = TetrisGame.DEFAULT_NUM_ROWS;
+		PositionDataset.Writer writer = new PositionDataset.Writer(file, numRows, 
+				TetrisGame.DEFAULT_NUM_COLS, rowGroupSize);
+		Bot bot = new Bot(new Evaluator());
+		// The positions of the current game, written once its outcome is known.
+		int[] boards = new int[maxPieces * numRows];
+		int[] placements = new int[maxPieces * 4];
+		int[] rowsClearedBefore = new int[maxPieces];
+		try {
+			long written = 0;
+			for (int seed = worker + 1; written < positions; seed += threads) {
+				TetrisGame game = new TetrisGame(STARTING_LEVEL, new SeededRandom(seed));
+				int numPositions = 0;
+				while (!game.isGameOver() && numPositions < maxPieces) {
+					game.update();
+					if (game.isGameOver()) {
+						break;
+					}
+					int currentPiece = game.getCurrentPiece().getPieceDefinition()
+							.getIndex();
+					int nextPiece = game.getNextPiece().getPieceDefinition().getIndex();
+					rowsClearedBefore[numPositions] = game.getTotalRowsCleared();
+					if (!bot.play(game)) {
+						break;
+					}
+					PlacementSearch search = bot.getSearch();
+					TetrisMatrix matrix = search.getMatrix();
+					for (int r = 0; r < numRows; r++) {
+						boards[numPositions * numRows + r] = matrix.getRowMask(r);
+					}
+					int p = numPositions * 4;
+					placements[p] = currentPiece | (nextPiece << 8);
+					placements[p + 1] = search.getBestPiece().getRotation();
+					placements[p + 2] = search.getBestRow();
+					placements[p + 3] = search.getBestCol();
+					numPositions++;
+				}
+				int totalRowsCleared = game.getTotalRowsCleared();
+				for (int i = 0; i < numPositions; i++) {
+					int p = i * 4;
+					int after = (i + 1 < numPositions) 
+							? rowsClearedBefore[i + 1] : totalRowsCleared;
+					writer.add(boards, i * numRows, seed, 
+							totalRowsCleared - rowsClearedBefore[i], 
+							placements[p] & 0xFF, placements[p] >>> 8, placements[p + 1], 
+							placements[p + 2], placements[p + 3], 
+							after - rowsClearedBefore[i]);
+				}
+				written += numPositions;
+			}
+		} finally {
+			writer.close();
+		}
+		return file;
+	}
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2009 Hao Nguyen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwt.g2d.tetris.tools;
+
+import gwt.g2d.tetris.client.MoveGenerator;
+import gwt.g2d.tetris.client.Piece;
+import gwt.g2d.tetris.client.PieceDefinition;
+import gwt.g2d.tetris.client.PieceState;
+import gwt.g2d.tetris.client.RotationSystem;
+import gwt.g2d.tetris.client.SeededRandom;
+import gwt.g2d.tetris.client.TetrisGame;
+import gwt.g2d.tetris.client.TetrisMatrix;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Counts the distinct placement sequences reachable from an empty matrix to
+ * a given depth ("perft"), for the piece sequences of fixed seeds. 
+ * 
+ * The counts of the {@link MoveGenerator} are checked against a slow 
+ * reference search that only uses {@link TetrisMatrix#isValidPiece}, and the 
+ * throughput of the generator is reported. Exits with a non-zero status if 
+ * the counts differ. The counts of a few seeds are also pinned by PerftTest.
+ * 
+ * Usage: Perft [maxDepth] [verifyDepth] [seeds] [none|standard]
+ */
+public class Perft {
+	private static final int NUM_ROWS = TetrisGame.DEFAULT_NUM_ROWS, 
+			NUM_COLS = TetrisGame.DEFAULT_NUM_COLS;
+	private static final int START_ROW = 0, 
+			START_COL = NUM_COLS / 2 - Piece.PIECE_SIZE / 2;
+	
+	private final RotationSystem rotationSystem;
+	private final MoveGenerator moveGenerator;
+	private final PieceState[] pieces;
+	// Per depth buffers, allocated once.
+	private final int[][] boards, placements;
+	private long nodes;
+	
+	/**
+	 * Creates a perft over the piece sequence of the given seed, which is the
+	 * same sequence as a {@link TetrisGame} with that seed.
+	 */
+	public Perft(int seed, int maxDepth, RotationSystem rotationSystem) {
+		this.rotationSystem = rotationSystem;
+		moveGenerator = new MoveGenerator(NUM_ROWS, NUM_COLS, rotationSystem);
+		SeededRandom random = new SeededRandom(seed);
+		pieces = new PieceState[maxDepth];
+		for (int i = 0; i < maxDepth; i++) {
+			pieces[i] = PieceDefinition.randomPieceDefinition(random).getState(
+					random.nextInt(Piece.PIECE_SIZE));
+		}
+		boards = new int[maxDepth + 1][NUM_ROWS];
+		placements = new int[maxDepth][moveGenerator.getMaxPlacements()];
+	}
+	
+	public static void main(String[] args) {
+		int maxDepth = ToolArgs.intArg(args, 0, 3);
+		int verifyDepth = ToolArgs.intArg(args, 1, 2);
+		int numSeeds = ToolArgs.intArg(args, 2, 5);
+		RotationSystem rotationSystem = (args.length > 3 
+				&& args[3].equals(RotationSystem.NONE.getName())) 
+				? RotationSystem.NONE : RotationSystem.STANDARD;
+		boolean ok = true;
+		for (int seed = 1; seed <= numSeeds; seed++) {
+			Perft perft = new Perft(seed, maxDepth, rotationSystem);
+			for (int depth = 1; depth <= maxDepth; depth++) {
+				long start = System.nanoTime();
+				perft.nodes = 0;
+				long count = perft.perft(depth);
+				double seconds = (System.nanoTime() - start) / 1e9;
+				String line = "seed " + seed + " depth " + depth + ": " + count 
+						+ " placements, " + perft.nodes + " searched states, " 
+						+ Math.round(perft.nodes / Math.max(seconds, 1e-9)) + " states/s";
+				if (depth <= verifyDepth) {
+					long expected = perft.referencePerft(depth);
+					line += (expected == count) ? " (verified)" 
+							: " MISMATCH, reference " + expected;
+					ok &= (expected == count);
+				}
+				System.out.println(line);
+			}
+		}
+		if (!ok) {
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Counts the placement sequences of the given depth from an empty matrix.
+	 */
+	public long perft(int depth) {
+		for (int r = 0; r < NUM_ROWS; r++) {
+			boards[0][r] = 0;
+		}
+		return perft(0, depth);
+	}
+	
+	private long perft(int ply, int depth) {
+		if (ply == depth) {
+			return 1;
+		}
+		PieceState piece = pieces[ply];
+		int[] board = boards[ply];
+		int[] moves = placements[ply];
+		int numPlacements = moveGenerator.generate(board, piece, START_ROW, 
+				START_COL, moves);
+		nodes += moveGenerator.getNumNodes();
+		if (ply + 1 == depth) {
+			return numPlacements;
+		}
+		long count = 0;
+		int[] child = boards[ply + 1];
+		for (int i = 0; i < numPlacements; i++) {
+			int placement = moves[i];
+			TetrisMatrix.lockPiece(board, child, NUM_ROWS, NUM_COLS, 
+					piece.getPieceDefinition().getState(
+							moveGenerator.getRotation(placement)),
+					moveGenerator.getRow(placement), moveGenerator.getCol(placement));
+			count += perft(ply + 1, depth);
+		}
+		return count;
+	}
+	
+	/**
+	 * Counts the placement sequences with a straightforward search over
+	 * {@link TetrisMatrix} and {@link Piece}.
+	 */
+	public long referencePerft(int depth) {
+		return referencePerft(new TetrisMatrix(NUM_ROWS, NUM_COLS), 0, depth);
+	}
+	
+	private long referencePerft(TetrisMatrix matrix, int ply, int depth) {
+		if (ply == depth) {
+			return 1;
+		}
+		long count = 0;
+		for (int[] placement : referencePlacements(matrix, ply)) {
+			if (ply + 1 == depth) {
+				count++;
+				continue;
+			}
+			TetrisMatrix child = new TetrisMatrix(NUM_ROWS, NUM_COLS);
+			child.copyFrom(matrix);
+			child.setPiece(placement[1], placement[2], 
+					pieces[ply].getPieceDefinition().getState(placement[0]));
+			child.checkAndClear(placement[1] + Piece.PIECE_SIZE);
+			count += referencePerft(child, ply + 1, depth);
+		}
+		return count;
+	}
+	
+	/**
+	 * Finds the placements of a ply as {rotation, row, col}, one per distinct
+	 * set of locked cells.
+	 */
+	private List<int[]> referencePlacements(TetrisMatrix matrix, int ply) {
+		List<int[]> result = new ArrayList<int[]>();
+		Set<String> visited = new HashSet<String>();
+		Set<String> lockedCells = new HashSet<String>();
+		LinkedList<int[]> queue = new LinkedList<int[]>();
+		int[] start = new int[] { pieces[ply].getRotation(), START_ROW, START_COL };
+		if (!isValid(matrix, ply, start)) {
+			return result;
+		}
+		queue.add(start);
+		visited.add(key(start));
+		while (!queue.isEmpty()) {
+			int[] state = queue.removeFirst();
+			int[] down = new int[] { state[0], state[1] + 1, state[2] };
+			if (!isValid(matrix, ply, down)) {
+				if (lockedCells.add(cells(ply, state))) {
+					result.add(state);
+				}
+			}
+			List<int[]> nextStates = new ArrayList<int[]>();
+			nextStates.add(down);
+			nextStates.add(new int[] { state[0], state[1], state[2] - 1 });
+			nextStates.add(new int[] { state[0], state[1], state[2] + 1 });
+			PieceState from = getState(ply, state);
+			int kick = rotationSystem.findKick(matrix, state[1], state[2], from, 
+					RotationSystem.CLOCKWISE);
+			if (kick >= 0) {
+				nextStates.add(new int[] { from.rotateRight().getRotation(),
+						state[1] + rotationSystem.getKickRow(from, 
+								RotationSystem.CLOCKWISE, kick), 
+						state[2] + rotationSystem.getKickCol(from, 
+								RotationSystem.CLOCKWISE, kick) });
+			}
+			for (int[] next : nextStates) {
+				if (isValid(matrix, ply, next) && visited.add(key(next))) {
+					queue.add(next);
+				}
+			}
+		}
+		return result;
+	}
+	
+	private boolean isValid(TetrisMatrix matrix, int ply, int[] state) {
+		return matrix.isValidPiece(state[1], state[2], getState(ply, state));
+	}
+	
+	private PieceState getState(int ply, int[] state) {
+		return pieces[ply].getPieceDefinition().getState(state[0]);
+	}
+	
+	private static String key(int[] state) {
+		return state[0] + "," + state[1] + "," + state[2];
+	}
+	
+	private String cells(int ply, int[] state) {
+		PieceState piece = getState(ply, state);
+		StringBuilder builder = new StringBuilder();
+		for (int r = 0; r < Piece.PIECE_SIZE; r++) {
+			for (int c = 0; c < Piece.PIECE_SIZE; c++) {
+				if (piece.getBlock(r, c) != null) {
+					builder.append(state[1] + r).append(',').append(state[2] + c)
+							.append(';');
+				}
+			}
+		}
+		return builder.toString();
+	}
+}
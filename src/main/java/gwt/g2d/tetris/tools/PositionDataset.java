@@ -0,0 +1,396 @@
+/*
+ * Copyright 2009 Hao Nguyen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwt.g2d.tetris.tools;
+
+import gwt.g2d.tetris.client.TetrisMatrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A columnar file of board positions and the placements chosen in them, read
+ * through memory mapping.
+ * 
+ * The positions are stored in row groups, each of which holds its columns 
+ * one after the other, so that a column of a row group can be used in place 
+ * as a buffer view without copying nor decoding. The columns are, for each
+ * position:
+ * <ul>
+ * <li>BOARD: the occupied columns of each row of the matrix, one short per 
+ * row from top to bottom,</li>
+ * <li>SEED: the seed of the game,</li>
+ * <li>OUTCOME: the number of rows cleared from this position to the end of 
+ * the game,</li>
+ * <li>CURRENT_PIECE, NEXT_PIECE: the indexes of the piece definitions,</li>
+ * <li>ROTATION, ROW, COL: the chosen placement of the current piece,</li>
+ * <li>ROWS_CLEARED: the number of rows cleared by that placement.</li>
+ * </ul>
+ * 
+ * All numbers are little-endian. The file starts with a header of the magic
+ * number, the version, the number of rows and of columns of the matrices. 
+ * Each row group starts with its number of positions and a reserved int,
+ * followed by the columns in the above order, each padded to 8 bytes. The 
+ * file ends with the offsets of the row groups (longs), their number and 
+ * the magic number.
+ */
+public class PositionDataset {
+	public static final int MAGIC = 0x54504453, VERSION = 1;
+	private static final int HEADER_SIZE = 16, GROUP_HEADER_SIZE = 8;
+	// Bytes per position of the columns after BOARD, whose size depends on the 
+	// number of rows.
+	private static final int[] COLUMN_SIZES = {4, 4, 1, 1, 1, 1, 1, 1};
+	private static final int SEED = 0, OUTCOME = 1, CURRENT_PIECE = 2, 
+			NEXT_PIECE = 3, ROTATION = 4, ROW = 5, COL = 6, ROWS_CLEARED = 7;
+	
+	private final int numRows, numCols;
+	private final RowGroup[] rowGroups;
+	private final long numPositions;
+	
+	private PositionDataset(int numRows, int numCols, RowGroup[] rowGroups) {
+		this.numRows = numRows;
+		this.numCols = numCols;
+		this.rowGroups = rowGroups;
+		long positions = 0;
+		for (RowGroup rowGroup : rowGroups) {
+			positions += rowGroup.size();
+		}
+		numPositions = positions;
+	}
+	
+	/**
+	 * Maps a dataset file. The mapping stays valid after this returns.
+	 */
+	public static PositionDataset open(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer header = read(channel, 0, HEADER_SIZE);
+			if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+				throw new IOException("Not a position dataset: " + file);
+			}
+			int numRows = header.getInt();
+			int numCols = header.getInt();
+			long size = channel.size();
+			ByteBuffer trailer = read(channel, size - 8, 8);
+			int numRowGroups = trailer.getInt();
+			if (trailer.getInt() != MAGIC) {
+				throw new IOException("Truncated position dataset: " + file);
+			}
+			ByteBuffer offsets = read(channel, size - 8 - 8L * numRowGroups, 
+					8 * numRowGroups);
+			RowGroup[] rowGroups = new RowGroup[numRowGroups];
+			for (int i = 0; i < numRowGroups; i++) {
+				long offset = offsets.getLong();
+				int count = read(channel, offset, 4).getInt();
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 
+						offset, getRowGroupSize(count, numRows));
+				rowGroups[i] = new RowGroup(buffer, count, numRows);
+			}
+			return new PositionDataset(numRows, numCols, rowGroups);
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Gets the number of rows of the matrices.
+	 */
+	public int getNumRows() {
+		return numRows;
+	}
+	
+	/**
+	 * Gets the number of columns of the matrices.
+	 */
+	public int getNumCols() {
+		return numCols;
+	}
+	
+	/**
+	 * Gets the total number of positions.
+	 */
+	public long getNumPositions() {
+		return numPositions;
+	}
+	
+	public int getNumRowGroups() {
+		return rowGroups.length;
+	}
+	
+	public RowGroup getRowGroup(int index) {
+		return rowGroups[index];
+	}
+	
+	/**
+	 * The positions of a row group, whose columns are views of the mapped file.
+	 */
+	public static class RowGroup {
+		private final int count, numRows;
+		private final ShortBuffer boards;
+		private final IntBuffer seeds, outcomes;
+		private final ByteBuffer currentPieces, nextPieces, rotations, rows, 
+				cols, rowsCleared;
+		
+		RowGroup(ByteBuffer buffer, int count, int numRows) {
+			this.count = count;
+			this.numRows = numRows;
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			int offset = GROUP_HEADER_SIZE;
+			boards = column(buffer, offset, count * numRows * 2).asShortBuffer();
+			offset += pad(count * numRows * 2);
+			ByteBuffer[] columns = new ByteBuffer[COLUMN_SIZES.length];
+			for (int i = 0; i < columns.length; i++) {
+				columns[i] = column(buffer, offset, count * COLUMN_SIZES[i]);
+				offset += pad(count * COLUMN_SIZES[i]);
+			}
+			seeds = columns[SEED].asIntBuffer();
+			outcomes = columns[OUTCOME].asIntBuffer();
+			currentPieces = columns[CURRENT_PIECE];
+			nextPieces = columns[NEXT_PIECE];
+			rotations = columns[ROTATION];
+			rows = columns[ROW];
+			cols = columns[COL];
+			rowsCleared = columns[ROWS_CLEARED];
+		}
+		
+		/**
+		 * Gets the number of positions.
+		 */
+		public int size() {
+			return count;
+		}
+		
+		/**
+		 * Gets the occupied columns of a row of the matrix of a position.
+		 */
+		public int getRowMask(int position, int row) {
+			return boards.get(position * numRows + row) & 0xFFFF;
+		}
+		
+		public int getSeed(int position) {
+			return seeds.get(position);
+		}
+		
+		public int getOutcome(int position) {
+			return outcomes.get(position);
+		}
+		
+		public int getCurrentPiece(int position) {
+			return currentPieces.get(position);
+		}
+		
+		public int getNextPiece(int position) {
+			return nextPieces.get(position);
+		}
+		
+		public int getRotation(int position) {
+			return rotations.get(position);
+		}
+		
+		public int getRow(int position) {
+			return rows.get(position);
+		}
+		
+		public int getCol(int position) {
+			return cols.get(position);
+		}
+		
+		public int getRowsCleared(int position) {
+			return rowsCleared.get(position);
+		}
+		
+		/**
+		 * Gets the whole BOARD column, numRows shorts per position.
+		 */
+		public ShortBuffer getBoards() {
+			return boards.duplicate();
+		}
+		
+		/**
+		 * Gets the whole CURRENT_PIECE column.
+		 */
+		public ByteBuffer getCurrentPieces() {
+			return currentPieces.duplicate();
+		}
+		
+		/**
+		 * Gets the whole OUTCOME column.
+		 */
+		public IntBuffer getOutcomes() {
+			return outcomes.duplicate();
+		}
+		
+		private static ByteBuffer column(ByteBuffer buffer, int offset, int size) {
+			ByteBuffer column = buffer.duplicate();
+			column.position(offset).limit(offset + size);
+			return column.slice().order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+	
+	/**
+	 * Writes the positions to a dataset file, a row group at a time.
+	 */
+	public static class Writer {
+		private final FileChannel channel;
+		private final RandomAccessFile out;
+		private final int numRows, rowGroupSize;
+		private final short[] boards;
+		private final int[][] intColumns;
+		private final byte[][] byteColumns;
+		private final ByteBuffer buffer;
+		private long[] offsets = new long[16];
+		private int numRowGroups, count;
+		
+		public Writer(File file, int numRows, int numCols, int rowGroupSize) 
+				throws IOException {
+			if (numCols > 16) {
+				throw new IllegalArgumentException(
+						"Only matrices of up to 16 columns are supported: " + numCols);
+			}
+			this.numRows = numRows;
+			this.rowGroupSize = rowGroupSize;
+			boards = new short[rowGroupSize * numRows];
+			intColumns = new int[2][rowGroupSize];
+			byteColumns = new byte[COLUMN_SIZES.length - 2][rowGroupSize];
+			buffer = ByteBuffer.allocateDirect((int) getRowGroupSize(rowGroupSize, 
+					numRows)).order(ByteOrder.LITTLE_ENDIAN);
+			out = new RandomAccessFile(file, "rw");
+			out.setLength(0);
+			channel = out.getChannel();
+			buffer.putInt(MAGIC).putInt(VERSION).putInt(numRows).putInt(numCols);
+			writeBuffer();
+		}
+		
+		/**
+		 * Adds a position.
+		 * 
+		 * @param rowMasks holds the row bitmasks of the matrix without the 
+		 * 				current piece, see {@link TetrisMatrix#getRowMask}.
+		 * @param offset the index of the top row in rowMasks.
+		 */
+		public void add(int[] rowMasks, int offset, int seed, int outcome, 
+				int currentPiece, int nextPiece, int rotation, int row, int col, 
+				int rowsCleared) throws IOException {
+			int base = count * numRows;
+			for (int r = 0; r < numRows; r++) {
+				boards[base + r] = (short) rowMasks[offset + r];
+			}
+			intColumns[SEED][count] = seed;
+			intColumns[OUTCOME][count] = outcome;
+			byteColumns[CURRENT_PIECE - 2][count] = (byte) currentPiece;
+			byteColumns[NEXT_PIECE - 2][count] = (byte) nextPiece;
+			byteColumns[ROTATION - 2][count] = (byte) rotation;
+			byteColumns[ROW - 2][count] = (byte) row;
+			byteColumns[COL - 2][count] = (byte) col;
+			byteColumns[ROWS_CLEARED - 2][count] = (byte) rowsCleared;
+			if (++count == rowGroupSize) {
+				flush();
+			}
+		}
+		
+		/**
+		 * Writes the last row group and the footer, and closes the file.
+		 */
+		public void close() throws IOException {
+			try {
+				flush();
+				ByteBuffer footer = ByteBuffer.allocate(8 * numRowGroups + 8).order(
+						ByteOrder.LITTLE_ENDIAN);
+				for (int i = 0; i < numRowGroups; i++) {
+					footer.putLong(offsets[i]);
+				}
+				footer.putInt(numRowGroups).putInt(MAGIC).flip();
+				while (footer.hasRemaining()) {
+					channel.write(footer);
+				}
+			} finally {
+				out.close();
+			}
+		}
+		
+		private void flush() throws IOException {
+			if (count == 0) {
+				return;
+			}
+			if (numRowGroups == offsets.length) {
+				long[] newOffsets = new long[offsets.length * 2];
+				System.arraycopy(offsets, 0, newOffsets, 0, numRowGroups);
+				offsets = newOffsets;
+			}
+			offsets[numRowGroups++] = channel.position();
+			buffer.putInt(count).putInt(0);
+			buffer.asShortBuffer().put(boards, 0, count * numRows);
+			skip(count * numRows * 2);
+			for (int i = 0; i < intColumns.length; i++) {
+				buffer.asIntBuffer().put(intColumns[i], 0, count);
+				skip(count * 4);
+			}
+			for (int i = 0; i < byteColumns.length; i++) {
+				buffer.put(byteColumns[i], 0, count);
+				skip(0);
+			}
+			writeBuffer();
+			count = 0;
+		}
+		
+		/**
+		 * Moves past the given number of bytes written through a view, and the
+		 * padding of the column.
+		 */
+		private void skip(int size) {
+			buffer.position(pad(buffer.position() + size));
+		}
+		
+		private void writeBuffer() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+	}
+	
+	private static long getRowGroupSize(int count, int numRows) {
+		long size = GROUP_HEADER_SIZE + pad(count * numRows * 2);
+		for (int i = 0; i < COLUMN_SIZES.length; i++) {
+			size += pad(count * COLUMN_SIZES[i]);
+		}
+		return size;
+	}
+	
+	private static int pad(int size) {
+		return (size + 7) & ~7;
+	}
+	
+	private static ByteBuffer read(FileChannel channel, long position, int size) 
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of file");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+}
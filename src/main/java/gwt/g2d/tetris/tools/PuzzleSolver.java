@@ -0,0 +1,290 @@
+/*
+ * Copyright 2009 Hao Nguyen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwt.g2d.tetris.tools;
+
+import gwt.g2d.tetris.client.PerfectClearSolver;
+import gwt.g2d.tetris.client.Piece;
+import gwt.g2d.tetris.client.PieceDefinition;
+import gwt.g2d.tetris.client.PieceState;
+import gwt.g2d.tetris.client.RotationSystem;
+import gwt.g2d.tetris.client.SeededRandom;
+import gwt.g2d.tetris.client.TetrisGame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Solves perfect-clear puzzles with a {@link PerfectClearSolver} on several
+ * threads, either by splitting the search of a single puzzle by the 
+ * placements of its first piece, or by solving a batch of puzzles one per
+ * thread at a time. All the solvers share one table of failed matrices, so 
+ * that a matrix found to fail in one subtree or puzzle is not searched again
+ * in another.
+ * 
+ * Run as a program, it solves the puzzles of clearing an empty matrix with
+ * the first pieces of the sequences of fixed seeds, then solves the first
+ * solvable one again with the split search.
+ * 
+ * Usage: PuzzleSolver [puzzles] [pieces] [threads] [none|standard]
+ */
+public class PuzzleSolver {
+	private static final int NUM_ROWS = TetrisGame.DEFAULT_NUM_ROWS, 
+			NUM_COLS = TetrisGame.DEFAULT_NUM_COLS;
+	private static final int TABLE_BITS = 22;
+	
+	private final RotationSystem rotationSystem;
+	private final PerfectClearSolver.Table table = 
+			new PerfectClearSolver.Table(TABLE_BITS);
+	private final ExecutorService executor;
+	private final int threads;
+	private final ThreadLocal<PerfectClearSolver> solvers = 
+			new ThreadLocal<PerfectClearSolver>() {
+				@Override
+				protected PerfectClearSolver initialValue() {
+					return new PerfectClearSolver(NUM_ROWS, NUM_COLS, rotationSystem, 
+							table);
+				}
+			};
+	
+	/**
+	 * The placements of a solution, one per piece.
+	 */
+	public static class Solution {
+		private final PieceState[] pieces;
+		private final int[] rows, cols;
+		
+		Solution(int numPieces) {
+			pieces = new PieceState[numPieces];
+			rows = new int[numPieces];
+			cols = new int[numPieces];
+		}
+		
+		void copyFrom(PerfectClearSolver solver, int firstPiece) {
+			for (int i = firstPiece; i < pieces.length; i++) {
+				pieces[i] = solver.getSolutionPiece(i);
+				rows[i] = solver.getSolutionRow(i);
+				cols[i] = solver.getSolutionCol(i);
+			}
+		}
+		
+		public PieceState getPiece(int step) {
+			return pieces[step];
+		}
+		
+		public int getRow(int step) {
+			return rows[step];
+		}
+		
+		public int getCol(int step) {
+			return cols[step];
+		}
+		
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			for (int i = 0; i < pieces.length; i++) {
+				builder.append(i == 0 ? "" : " ")
+						.append(pieces[i].getPieceDefinition().getIndex()).append('/')
+						.append(pieces[i].getRotation()).append('@')
+						.append(rows[i]).append(',').append(cols[i]);
+			}
+			return builder.toString();
+		}
+	}
+	
+	public PuzzleSolver(RotationSystem rotationSystem, int threads) {
+		this.rotationSystem = rotationSystem;
+		this.threads = threads;
+		executor = Executors.newFixedThreadPool(threads);
+	}
+	
+	public static void main(String[] args) throws Exception {
+		int numPuzzles = ToolArgs.intArg(args, 0, 100);
+		int numPieces = ToolArgs.intArg(args, 1, 10);
+		int threads = ToolArgs.intArg(args, 2, 
+				Runtime.getRuntime().availableProcessors());
+		RotationSystem rotationSystem = (args.length > 3 
+				&& args[3].equals(RotationSystem.NONE.getName())) 
+				? RotationSystem.NONE : RotationSystem.STANDARD;
+		List<PieceState[]> puzzles = new ArrayList<PieceState[]>(numPuzzles);
+		for (int i = 0; i < numPuzzles; i++) {
+			puzzles.add(createPieces(i + 1, numPieces));
+		}
+		int[] emptyRows = new int[NUM_ROWS];
+		
+		PuzzleSolver solver = new PuzzleSolver(rotationSystem, threads);
+		try {
+			long start = System.nanoTime();
+			Solution[] solutions = solver.solveAll(emptyRows, puzzles);
+			long elapsed = System.nanoTime() - start;
+			int solved = 0, firstSolved = -1;
+			for (int i = 0; i < numPuzzles; i++) {
+				if (solutions[i] != null) {
+					solved++;
+					firstSolved = (firstSolved < 0) ? i : firstSolved;
+				}
+			}
+			System.out.println(numPuzzles + " puzzles of " + numPieces 
+					+ " pieces on " + threads + " threads: " + solved + " solved, " 
+					+ (elapsed / 1000 / Math.max(1, numPuzzles)) + " us per puzzle");
+			if (firstSolved >= 0) {
+				System.out.println("seed " + (firstSolved + 1) + ": " 
+						+ solutions[firstSolved]);
+				start = System.nanoTime();
+				Solution split = solver.solve(emptyRows, puzzles.get(firstSolved));
+				elapsed = System.nanoTime() - start;
+				System.out.println("split search: " + (elapsed / 1000) + " us, " 
+						+ split);
+			}
+		} finally {
+			solver.shutdown();
+		}
+	}
+	
+	/**
+	 * Creates the first pieces of the sequence of the given seed, which is the
+	 * same sequence as a {@link TetrisGame} with that seed.
+	 */
+	public static PieceState[] createPieces(int seed, int numPieces) {
+		SeededRandom random = new SeededRandom(seed);
+		PieceState[] pieces = new PieceState[numPieces];
+		for (int i = 0; i < numPieces; i++) {
+			pieces[i] = PieceDefinition.randomPieceDefinition(random).getState(
+					random.nextInt(Piece.PIECE_SIZE));
+		}
+		return pieces;
+	}
+	
+	/**
+	 * Solves a single puzzle, searching the subtree of each placement of the
+	 * first piece on its own thread. The other searches are cancelled once 
+	 * one of them finds a solution.
+	 * 
+	 * @return the solution, or null if there is none.
+	 */
+	public Solution solve(final int[] rows, final PieceState[] pieces) 
+			throws InterruptedException {
+		PerfectClearSolver root = solvers.get();
+		int maxChildren = root.getMaxPlacements();
+		final PieceState[] childPieces = new PieceState[maxChildren];
+		final int[] childRows = new int[maxChildren], childCols = new int[maxChildren];
+		final int[][] children = new int[maxChildren][NUM_ROWS];
+		int numChildren = root.expand(rows, pieces, childPieces, childRows, 
+				childCols, children);
+		
+		final List<PerfectClearSolver> running = new ArrayList<PerfectClearSolver>();
+		final Solution[] found = new Solution[1];
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(numChildren);
+		for (int i = 0; i < numChildren; i++) {
+			final int child = i;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					// Each subtree gets its own solver, since a cancelled solver 
+					// stays cancelled.
+					PerfectClearSolver solver = new PerfectClearSolver(NUM_ROWS, 
+							NUM_COLS, rotationSystem, table);
+					synchronized (running) {
+						if (found[0] != null) {
+							return null;
+						}
+						running.add(solver);
+					}
+					if (!solver.solve(children[child], pieces, 1)) {
+						return null;
+					}
+					Solution solution = new Solution(pieces.length);
+					solution.copyFrom(solver, 1);
+					solution.pieces[0] = childPieces[child];
+					solution.rows[0] = childRows[child];
+					solution.cols[0] = childCols[child];
+					synchronized (running) {
+						if (found[0] == null) {
+							found[0] = solution;
+							for (PerfectClearSolver other : running) {
+								other.cancel();
+							}
+						}
+					}
+					return null;
+				}
+			});
+		}
+		awaitAll(executor.invokeAll(tasks));
+		synchronized (running) {
+			return found[0];
+		}
+	}
+	
+	/**
+	 * Solves a batch of puzzles that share the same matrix, each on a single
+	 * thread.
+	 * 
+	 * @return the solution of each puzzle, or null for those without one.
+	 */
+	public Solution[] solveAll(final int[] rows, List<PieceState[]> puzzles) 
+			throws InterruptedException {
+		final Solution[] solutions = new Solution[puzzles.size()];
+		// Puzzles are handed out in chunks to keep the queue short.
+		int chunk = Math.max(1, puzzles.size() / (threads * 16));
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int start = 0; start < puzzles.size(); start += chunk) {
+			final List<PieceState[]> batch = puzzles.subList(start, 
+					Math.min(puzzles.size(), start + chunk));
+			final int offset = start;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					PerfectClearSolver solver = solvers.get();
+					for (int i = 0; i < batch.size(); i++) {
+						PieceState[] pieces = batch.get(i);
+						if (solver.solve(rows, pieces)) {
+							Solution solution = new Solution(pieces.length);
+							solution.copyFrom(solver, 0);
+							solutions[offset + i] = solution;
+						}
+					}
+					return null;
+				}
+			});
+		}
+		awaitAll(executor.invokeAll(tasks));
+		return solutions;
+	}
+	
+	/**
+	 * Stops the worker threads.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+	
+	private static void awaitAll(List<Future<Void>> futures) 
+			throws InterruptedException {
+		for (Future<Void> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+		}
+	}
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2009 Hao Nguyen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwt.g2d.tetris.tools;
+
+import gwt.g2d.tetris.client.Bot;
+import gwt.g2d.tetris.client.Evaluator;
+import gwt.g2d.tetris.client.MoveGenerator;
+import gwt.g2d.tetris.client.RollbackGame;
+import gwt.g2d.tetris.client.SeededRandom;
+import gwt.g2d.tetris.client.TetrisGame;
+import gwt.g2d.tetris.client.TetrisMatrix;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Random;
+
+/**
+ * Plays a versus match between two bots over a simulated network: each peer
+ * simulates its own game at once and the game of the other through a 
+ * {@link RollbackGame}, the inputs reaching the other peer after a random 
+ * latency. Reports the rollbacks and the time they take, and exits with a 
+ * non-zero status if a peer's copy of the other game ends up different from
+ * the original.
+ * 
+ * Usage: RollbackHarness [frames] [latencyFrames] [jitterFrames] 
+ * [maxRollbackFrames]
+ */
+public class RollbackHarness {
+	private static final int STARTING_LEVEL = 5;
+	
+	/**
+	 * An input sent at a frame, delivered at a later one.
+	 */
+	private static class Message {
+		final int frame, input, deliveryFrame;
+		
+		Message(int frame, int input, int deliveryFrame) {
+			this.frame = frame;
+			this.input = input;
+			this.deliveryFrame = deliveryFrame;
+		}
+	}
+	
+	/**
+	 * One side of the match.
+	 */
+	private static class Peer {
+		final TetrisGame game;
+		final RollbackGame opponent;
+		final Bot bot = new Bot(new Evaluator());
+		final int[] moves;
+		// The inputs planned for the current piece, with a release after each
+		// press.
+		final LinkedList<Integer> plannedInputs = new LinkedList<Integer>();
+		final LinkedList<Message> outbox = new LinkedList<Message>();
+		int frame, lastInput, plannedPiece;
+		int stalledFrames, maxResimulatedFrames;
+		long advanceNanos;
+		final long[] advanceTimes;
+		
+		Peer(int seed, int opponentSeed, int maxRollbackFrames, int frames) {
+			advanceTimes = new long[frames];
+			game = new TetrisGame(STARTING_LEVEL, new SeededRandom(seed));
+			opponent = new RollbackGame(new TetrisGame(STARTING_LEVEL, 
+					new SeededRandom(opponentSeed)), maxRollbackFrames);
+			bot.findBestPlacement(game);
+			moves = new int[bot.getSearch().getMaxMoves()];
+		}
+		
+		/**
+		 * Simulates the next frame of both games, unless the opponent's inputs
+		 * are too late.
+		 * 
+		 * @return the input of the own game, or -1 if the peer stalled.
+		 */
+		int tick() {
+			if (!opponent.canAdvance()) {
+				stalledFrames++;
+				return -1;
+			}
+			long resimulated = opponent.getResimulatedFrames();
+			long start = System.nanoTime();
+			opponent.advance();
+			long elapsed = System.nanoTime() - start;
+			advanceNanos += elapsed;
+			advanceTimes[frame] = elapsed;
+			maxResimulatedFrames = Math.max(maxResimulatedFrames, 
+					(int) (opponent.getResimulatedFrames() - resimulated));
+			
+			int input = plannedInputs.isEmpty() ? 0 : plannedInputs.removeFirst();
+			RollbackGame.step(game, lastInput, input);
+			lastInput = input;
+			frame++;
+			if (game.getCurrentPiece() != null && !game.isGameOver() 
+					&& game.getNumPieces() != plannedPiece) {
+				plan();
+			}
+			return input;
+		}
+		
+		/**
+		 * Plans the inputs that bring the current piece to the placement the 
+		 * bot picks.
+		 */
+		void plan() {
+			plannedPiece = game.getNumPieces();
+			plannedInputs.clear();
+			if (!bot.findBestPlacement(game)) {
+				return;
+			}
+			int numMoves = bot.getSearch().getBestPath(moves);
+			for (int i = 0; i < numMoves; i++) {
+				switch (moves[i]) {
+				case MoveGenerator.MOVE_LEFT:
+					plannedInputs.add(RollbackGame.INPUT_LEFT);
+					break;
+				case MoveGenerator.MOVE_RIGHT:
+					plannedInputs.add(RollbackGame.INPUT_RIGHT);
+					break;
+				case MoveGenerator.MOVE_DOWN:
+					plannedInputs.add(RollbackGame.INPUT_DOWN);
+					break;
+				case MoveGenerator.MOVE_ROTATE:
+					plannedInputs.add(RollbackGame.INPUT_ROTATE);
+					break;
+				}
+				plannedInputs.add(0);
+			}
+			plannedInputs.add(RollbackGame.INPUT_DROP);
+			plannedInputs.add(0);
+		}
+		
+		/**
+		 * Delivers the inputs of the other peer that have arrived.
+		 */
+		void receive(Peer sender, int now) {
+			while (!sender.outbox.isEmpty() 
+					&& sender.outbox.getFirst().deliveryFrame <= now) {
+				Message message = sender.outbox.removeFirst();
+				opponent.addInput(message.frame, message.input);
+			}
+		}
+	}
+	
+	public static void main(String[] args) {
+		int frames = ToolArgs.intArg(args, 0, 36000);
+		int latencyFrames = ToolArgs.intArg(args, 1, 6);
+		int jitterFrames = ToolArgs.intArg(args, 2, 3);
+		int maxRollbackFrames = ToolArgs.intArg(args, 3, 15);
+		Random random = new Random(1);
+		Peer[] peers = {
+			new Peer(1, 2, maxRollbackFrames, frames), 
+			new Peer(2, 1, maxRollbackFrames, frames), 
+		};
+		
+		// Messages are delivered in order, as over TCP.
+		int[] lastDelivery = new int[peers.length];
+		for (int now = 0; now < frames; now++) {
+			for (int p = 0; p < peers.length; p++) {
+				Peer peer = peers[p];
+				int frame = peer.frame;
+				int input = peer.tick();
+				if (input >= 0) {
+					int delivery = Math.max(lastDelivery[p], 
+							now + latencyFrames + random.nextInt(jitterFrames + 1));
+					lastDelivery[p] = delivery;
+					peer.outbox.add(new Message(frame, input, delivery));
+				}
+			}
+			for (int p = 0; p < peers.length; p++) {
+				peers[p].receive(peers[1 - p], now);
+			}
+		}
+		
+		// Brings both games to the same frame, with all the inputs delivered.
+		int lastFrame = Math.max(peers[0].frame, peers[1].frame);
+		for (int p = 0; p < peers.length; p++) {
+			Peer peer = peers[p];
+			while (peer.frame < lastFrame) {
+				peer.receive(peers[1 - p], Integer.MAX_VALUE);
+				int frame = peer.frame;
+				int input = peer.tick();
+				if (input >= 0) {
+					peer.outbox.add(new Message(frame, input, 0));
+				}
+			}
+		}
+		boolean same = true;
+		for (int p = 0; p < peers.length; p++) {
+			Peer peer = peers[p], other = peers[1 - p];
+			peer.receive(other, Integer.MAX_VALUE);
+			peer.opponent.rollback();
+			while (peer.opponent.getFrame() < other.frame) {
+				peer.opponent.advance();
+			}
+			boolean peerSame = isSame(peer.opponent.getGame(), other.game);
+			same &= peerSame;
+			long[] times = new long[peer.frame];
+			System.arraycopy(peer.advanceTimes, 0, times, 0, peer.frame);
+			Arrays.sort(times);
+			System.out.println("peer " + p + ": " + peer.frame + " frames, " 
+					+ peer.game.getNumPieces() + " pieces, " 
+					+ peer.stalledFrames + " stalled, " 
+					+ peer.opponent.getNumRollbacks() + " rollbacks, " 
+					+ peer.opponent.getResimulatedFrames() + " frames re-simulated (" 
+					+ peer.maxResimulatedFrames + " at most at once), " 
+					+ (peer.advanceNanos / Math.max(1, peer.frame)) + " ns per frame, " 
+					+ (times[times.length * 999 / 1000] / 1000) + " us at the 99.9th "
+					+ "percentile, " 
+					+ (peerSame ? "in sync" : "OUT OF SYNC"));
+		}
+		if (!same) {
+			System.exit(1);
+		}
+	}
+	
+	private static boolean isSame(TetrisGame a, TetrisGame b) {
+		TetrisMatrix ma = a.getMatrix(), mb = b.getMatrix();
+		for (int r = 0; r < ma.getNumRows(); r++) {
+			if (ma.getRowMask(r) != mb.getRowMask(r)) {
+				return false;
+			}
+		}
+		return a.getFrame() == b.getFrame() && a.getNumPieces() == b.getNumPieces()
+				&& a.getTotalRowsCleared() == b.getTotalRowsCleared()
+				&& a.getCurrentPiece() == b.getCurrentPiece()
+				&& a.getCurrentRow() == b.getCurrentRow()
+				&& a.getCurrentCol() == b.getCurrentCol();
+	}
+}
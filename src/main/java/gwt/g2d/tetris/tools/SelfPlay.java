@@ -0,0 +1,52 @@
+/*
+ * Copyright 2009 Hao Nguyen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwt.g2d.tetris.tools;
+
+import gwt.g2d.tetris.client.Bot;
+import gwt.g2d.tetris.client.Evaluator;
+import gwt.g2d.tetris.client.SeededRandom;
+import gwt.g2d.tetris.client.TetrisGame;
+
+/**
+ * Plays seeded games of tetris without any display, using the same rules
+ * ({@link TetrisGame}) as the browser game.
+ */
+public final class SelfPlay {
+	private static final int STARTING_LEVEL = 1;
+	
+	private SelfPlay() {
+	}
+	
+	/**
+	 * Plays a single game with a bot using the given evaluator.
+	 * 
+	 * @param evaluator the evaluator the bot uses to pick placements.
+	 * @param seed the seed of the piece sequence.
+	 * @param maxPieces the number of pieces after which the game is stopped.
+	 * @return the number of rows cleared before the game was lost or stopped.
+	 */
+	public static int play(Evaluator evaluator, int seed, int maxPieces) {
+		TetrisGame game = new TetrisGame(STARTING_LEVEL, new SeededRandom(seed));
+		Bot bot = new Bot(evaluator);
+		while (!game.isGameOver() && game.getNumPieces() < maxPieces) {
+			game.update();
+			if (!bot.play(game)) {
+				break;
+			}
+		}
+		return game.getTotalRowsCleared();
+	}
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2009 Hao Nguyen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwt.g2d.tetris.tools;
+
+import gwt.g2d.tetris.client.Bot;
+import gwt.g2d.tetris.client.Evaluator;
+import gwt.g2d.tetris.client.SeededRandom;
+import gwt.g2d.tetris.client.TetrisGame;
+import gwt.g2d.tetris.server.SpectatorHub;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * Measures the throughput of a {@link SpectatorHub} over loopback sockets: 
+ * a bot plays a game that is published every tick to the given number of 
+ * viewers, some of which only read now and then to check that slow viewers
+ * skip frames instead of holding them.
+ * 
+ * Each viewer uses two file descriptors, one on each side of the socket, so 
+ * the limit of open files must be above twice the number of viewers. When it
+ * is not, the hub and the viewers can be run in two processes on the same 
+ * port, by starting the "hub" side first and the "viewers" side with the same
+ * arguments; the hub side waits for the viewers before it publishes and the 
+ * viewers side reads for the given number of seconds once all are connected.
+ * 
+ * Usage: SpectatorLoadTest [viewers] [seconds] [ticksPerSecond] [slowPercent]
+ *     [port] [both|hub|viewers]
+ */
+public class SpectatorLoadTest {
+	private static final int GAME_ID = 1;
+	private static final int SLOW_READ_INTERVAL_MILLIS = 200;
+	private static final int SLOW_RECEIVE_BUFFER = 4096;
+	private static final String LOOPBACK = "127.0.0.1";
+	private static final String BOTH = "both", HUB = "hub", VIEWERS = "viewers";
+	
+	private final int numViewers, slowPercent;
+	private final SocketChannel[] channels;
+	private final Selector selector;
+	private long receivedBytes;
+	
+	public SpectatorLoadTest(int numViewers, int slowPercent) throws IOException {
+		this.numViewers = numViewers;
+		this.slowPercent = slowPercent;
+		channels = new SocketChannel[numViewers];
+		selector = Selector.open();
+	}
+	
+	public static void main(String[] args) throws Exception {
+		int numViewers = ToolArgs.intArg(args, 0, 10000);
+		int seconds = ToolArgs.intArg(args, 1, 10);
+		int ticksPerSecond = ToolArgs.intArg(args, 2, 60);
+		int slowPercent = ToolArgs.intArg(args, 3, 10);
+		int port = ToolArgs.intArg(args, 4, 0);
+		String side = (args.length > 5) ? args[5] : BOTH;
+		if (!side.equals(BOTH) && !side.equals(HUB) && !side.equals(VIEWERS)) {
+			throw new IllegalArgumentException("Unknown side: " + side);
+		}
+		
+		SpectatorLoadTest test = side.equals(HUB) ? null 
+				: new SpectatorLoadTest(numViewers, slowPercent);
+		if (side.equals(VIEWERS)) {
+			test.connect(port);
+			System.out.println(numViewers + " viewers connected");
+			test.startReader();
+			long start = System.nanoTime();
+			Thread.sleep(seconds * 1000L);
+			double elapsed = (System.nanoTime() - start) / 1e9;
+			System.out.println((long) (test.getReceivedBytes() / elapsed / 1024) 
+					+ " KB/s received");
+			return;
+		}
+		
+		SpectatorHub hub = new SpectatorHub(
+				new InetSocketAddress(InetAddress.getByName(LOOPBACK), port));
+		SpectatorHub.Stream stream = hub.getStream(GAME_ID);
+		if (test != null) {
+			test.connect(hub.getPort());
+		} else {
+			System.out.println("Listening on port " + hub.getPort());
+		}
+		while (stream.getNumViewers() < numViewers) {
+			Thread.sleep(10);
+		}
+		System.out.println(numViewers + " viewers connected");
+		if (test != null) {
+			test.startReader();
+		}
+		
+		TetrisGame game = new TetrisGame(1, new SeededRandom(1));
+		Bot bot = new Bot(new Evaluator());
+		long tickNanos = 1000000000L / ticksPerSecond;
+		long start = System.nanoTime();
+		long end = start + seconds * 1000000000L;
+		long ticks = 0, publishNanos = 0;
+		for (long next = start; next < end; next += tickNanos) {
+			long now = System.nanoTime();
+			if (next > now) {
+				Thread.sleep((next - now) / 1000000, (int) ((next - now) % 1000000));
+			}
+			if (game.isGameOver()) {
+				game.reset();
+			}
+			if (game.getCurrentPiece() == null) {
+				game.update();
+			} else if (ticks % 8 == 0) {
+				bot.play(game);
+			} else {
+				game.update();
+			}
+			long before = System.nanoTime();
+			stream.publish(game);
+			publishNanos += System.nanoTime() - before;
+			ticks++;
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		Thread.sleep(SLOW_READ_INTERVAL_MILLIS * 2);
+		long sent = stream.getSentFrames(), skipped = stream.getSkippedFrames();
+		System.out.println(ticks + " frames published in " + elapsed + " s, " 
+				+ (publishNanos / Math.max(1, ticks)) + " ns per publish");
+		System.out.println(sent + " frames sent (" + (long) (sent / elapsed) 
+				+ "/s), " + skipped + " skipped, " + stream.getNumFrames() 
+				+ " frames allocated, " + stream.getNumViewers() + " viewers left");
+		if (test != null) {
+			System.out.println((long) (test.getReceivedBytes() / elapsed / 1024) 
+					+ " KB/s received");
+		}
+		hub.close();
+	}
+	
+	/**
+	 * Starts reading from the viewers in a daemon thread.
+	 */
+	public void startReader() {
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					read();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}, "SpectatorLoadTest reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+	
+	/**
+	 * Connects the viewers and asks for the stream of the game.
+	 */
+	public void connect(int port) throws IOException {
+		InetSocketAddress address = 
+				new InetSocketAddress(InetAddress.getByName(LOOPBACK), port);
+		ByteBuffer request = ByteBuffer.allocate(4);
+		for (int i = 0; i < numViewers; i++) {
+			SocketChannel channel = SocketChannel.open();
+			if (isSlow(i)) {
+				channel.socket().setReceiveBufferSize(SLOW_RECEIVE_BUFFER);
+			}
+			channel.connect(address);
+			request.clear();
+			request.putInt(GAME_ID).flip();
+			while (request.hasRemaining()) {
+				channel.write(request);
+			}
+			channel.configureBlocking(false);
+			channels[i] = channel;
+		}
+	}
+	
+	/**
+	 * Reads from the fast viewers as data arrives, and from the slow viewers 
+	 * at fixed intervals.
+	 */
+	public void read() throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+		for (int i = 0; i < numViewers; i++) {
+			if (!isSlow(i)) {
+				channels[i].register(selector, SelectionKey.OP_READ);
+			}
+		}
+		long nextSlowRead = System.currentTimeMillis();
+		while (true) {
+			selector.select(SLOW_READ_INTERVAL_MILLIS);
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				drain((SocketChannel) key.channel(), buffer);
+			}
+			if (System.currentTimeMillis() >= nextSlowRead) {
+				for (int i = 0; i < numViewers; i++) {
+					if (isSlow(i)) {
+						drain(channels[i], buffer);
+					}
+				}
+				nextSlowRead += SLOW_READ_INTERVAL_MILLIS;
+			}
+		}
+	}
+	
+	public synchronized long getReceivedBytes() {
+		return receivedBytes;
+	}
+	
+	private void drain(SocketChannel channel, ByteBuffer buffer) 
+			throws IOException {
+		int read;
+		long bytes = 0;
+		do {
+			buffer.clear();
+			read = channel.read(buffer);
+			bytes += Math.max(0, read);
+		} while (read == buffer.capacity());
+		synchronized (this) {
+			receivedBytes += bytes;
+		}
+	}
+	
+	private boolean isSlow(int viewer) {
+		return viewer % 100 < slowPercent;
+	}
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2009 Hao Nguyen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwt.g2d.tetris.tools;
+
+/**
+ * Parses the command line arguments of the tools.
+ */
+final class ToolArgs {
+	private ToolArgs() {
+	}
+	
+	/**
+	 * Gets the integer argument at the given index, or the default value if 
+	 * there are not that many arguments.
+	 */
+	static int intArg(String[] args, int index, int defaultValue) {
+		return (args.length > index) ? Integer.parseInt(args[index]) : defaultValue;
+	}
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2009 Hao Nguyen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwt.g2d.tetris.tools;
+
+import gwt.g2d.tetris.client.Evaluator;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tunes the weights of the {@link Evaluator} with the cross-entropy method.
+ * 
+ * Each generation samples a population of weight vectors from a gaussian,
+ * scores each of them by the average rows cleared over seeded headless games
+ * ({@link SelfPlay}), and refits the gaussian to the elite candidates. Each
+ * generation plays different games, so the best weights so far are scored 
+ * again on the games of the generation before being compared with its 
+ * candidates. Games are played on all cores, and the state is checkpointed 
+ * after every generation so that a run can be stopped and resumed.
+ * 
+ * Usage: WeightTuner checkpointFile [generations] [population] [games] 
+ * [maxPieces] [threads]
+ */
+public class WeightTuner {
+	private static final double ELITE_FRACTION = 0.1;
+	private static final double INITIAL_STDDEV = 0.5;
+	// Extra noise added to the variance so that it does not collapse too early.
+	private static final double NOISE_DECAY = 0.9, INITIAL_NOISE = 0.1;
+	
+	private final File checkpointFile;
+	private final int population, games, maxPieces;
+	private final ExecutorService executor;
+	
+	private int generation;
+	private double[] mean = new double[Evaluator.NUM_FEATURES];
+	private double[] stddev = new double[Evaluator.NUM_FEATURES];
+	private double[] bestWeights;
+	private double bestScore = Double.NEGATIVE_INFINITY;
+	
+	public WeightTuner(File checkpointFile, int population, int games, 
+			int maxPieces, int threads) {
+		this.checkpointFile = checkpointFile;
+		this.population = population;
+		this.games = games;
+		this.maxPieces = maxPieces;
+		this.executor = Executors.newFixedThreadPool(threads);
+		Arrays.fill(stddev, INITIAL_STDDEV);
+	}
+	
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: WeightTuner checkpointFile [generations] "
+					+ "[population] [games] [maxPieces] [threads]");
+			System.exit(1);
+		}
+		int generations = ToolArgs.intArg(args, 1, 50);
+		WeightTuner tuner = new WeightTuner(new File(args[0]), 
+				ToolArgs.intArg(args, 2, 100), ToolArgs.intArg(args, 3, 20), 
+				ToolArgs.intArg(args, 4, 1000), 
+				ToolArgs.intArg(args, 5, Runtime.getRuntime().availableProcessors()));
+		try {
+			tuner.run(generations);
+		} finally {
+			tuner.shutdown();
+		}
+	}
+	
+	/**
+	 * Runs up to the given total number of generations, resuming from the 
+	 * checkpoint file if it exists.
+	 */
+	public void run(int generations) throws IOException, InterruptedException {
+		if (checkpointFile.exists()) {
+			loadCheckpoint();
+			System.out.println("Resuming at generation " + generation);
+		}
+		for (; generation < generations; generation++) {
+			runGeneration();
+			saveCheckpoint();
+			System.out.println("Generation " + generation + ": best " + bestScore
+					+ " " + Arrays.toString(bestWeights) 
+					+ " mean " + Arrays.toString(mean));
+		}
+	}
+	
+	/**
+	 * Stops the worker threads.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+	
+	/**
+	 * Gets the best weights found so far.
+	 */
+	public double[] getBestWeights() {
+		return bestWeights;
+	}
+	
+	/**
+	 * Samples, scores and selects one generation of candidates.
+	 */
+	private void runGeneration() throws InterruptedException {
+		// Seeding from the generation makes a resumed run identical to an
+		// uninterrupted one.
+		Random random = new Random(generation);
+		final double[][] candidates = new double[population][];
+		for (int i = 0; i < population; i++) {
+			candidates[i] = new double[Evaluator.NUM_FEATURES];
+			for (int f = 0; f < Evaluator.NUM_FEATURES; f++) {
+				candidates[i][f] = mean[f] + stddev[f] * random.nextGaussian();
+			}
+		}
+		
+		// All candidates of a generation play the same piece sequences, and so
+		// does the best weight vector so far, whose score on the games of an 
+		// earlier generation cannot be compared with theirs.
+		int seedOffset = generation * games;
+		List<Future<Double>> futures = new ArrayList<Future<Double>>(population);
+		for (int i = 0; i < population; i++) {
+			futures.add(submitScore(candidates[i], seedOffset));
+		}
+		Future<Double> incumbent = (bestWeights == null) ? null 
+				: submitScore(bestWeights, seedOffset);
+		final double[] scores = new double[population];
+		Integer[] order = new Integer[population];
+		for (int i = 0; i < population; i++) {
+			scores[i] = getScore(futures.get(i));
+			order[i] = i;
+		}
+		if (incumbent != null) {
+			bestScore = getScore(incumbent);
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(scores[b], scores[a]);
+			}
+		});
+		if (scores[order[0]] > bestScore) {
+			bestScore = scores[order[0]];
+			bestWeights = candidates[order[0]];
+		}
+		
+		int numElites = Math.max(1, (int) (population * ELITE_FRACTION));
+		double noise = INITIAL_NOISE * Math.pow(NOISE_DECAY, generation);
+		for (int f = 0; f < Evaluator.NUM_FEATURES; f++) {
+			double sum = 0;
+			for (int i = 0; i < numElites; i++) {
+				sum += candidates[order[i]][f];
+			}
+			mean[f] = sum / numElites;
+			double variance = 0;
+			for (int i = 0; i < numElites; i++) {
+				double d = candidates[order[i]][f] - mean[f];
+				variance += d * d;
+			}
+			stddev[f] = Math.sqrt(variance / numElites + noise);
+		}
+	}
+	
+	/**
+	 * Scores a weight vector by the average rows cleared over the games 
+	 * seeded from the given offset.
+	 */
+	private Future<Double> submitScore(double[] weights, final int seedOffset) {
+		final Evaluator evaluator = new Evaluator(weights);
+		return executor.submit(new Callable<Double>() {
+			@Override
+			public Double call() {
+				long rowsCleared = 0;
+				for (int g = 0; g < games; g++) {
+					rowsCleared += SelfPlay.play(evaluator, seedOffset + g + 1, 
+							maxPieces);
+				}
+				return (double) rowsCleared / games;
+			}
+		});
+	}
+	
+	private static double getScore(Future<Double> future) 
+			throws InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+	
+	/**
+	 * Restores the state of the tuner from the checkpoint file.
+	 */
+	private void loadCheckpoint() throws IOException {
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(checkpointFile);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		generation = Integer.parseInt(properties.getProperty("generation"));
+		mean = parseWeights(properties.getProperty("mean"));
+		stddev = parseWeights(properties.getProperty("stddev"));
+		if (properties.getProperty("best") != null) {
+			bestWeights = parseWeights(properties.getProperty("best"));
+			bestScore = Double.parseDouble(properties.getProperty("bestScore"));
+		}
+	}
+	
+	/**
+	 * Saves the state of the tuner to the checkpoint file. The file is 
+	 * written aside and renamed so that a crash never leaves it truncated.
+	 */
+	private void saveCheckpoint() throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty("generation", Integer.toString(generation + 1));
+		properties.setProperty("mean", formatWeights(mean));
+		properties.setProperty("stddev", formatWeights(stddev));
+		if (bestWeights != null) {
+			properties.setProperty("best", formatWeights(bestWeights));
+			properties.setProperty("bestScore", Double.toString(bestScore));
+		}
+		File tempFile = new File(checkpointFile.getPath() + ".tmp");
+		OutputStream out = new FileOutputStream(tempFile);
+		try {
+			properties.store(out, "WeightTuner checkpoint");
+		} finally {
+			out.close();
+		}
+		if (!tempFile.renameTo(checkpointFile)) {
+			checkpointFile.delete();
+			if (!tempFile.renameTo(checkpointFile)) {
+				throw new IOException("Cannot write " + checkpointFile);
+			}
+		}
+	}
+	
+	private static String formatWeights(double[] weights) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < weights.length; i++) {
+			if (i > 0) {
+				builder.append(',');
+			}
+			builder.append(weights[i]);
+		}
+		return builder.toString();
+	}
+	
+	private static double[] parseWeights(String text) {
+		String[] parts = text.split(",");
+		double[] weights = new double[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			weights[i] = Double.parseDouble(parts[i]);
+		}
+		return weights;
+	}
+}
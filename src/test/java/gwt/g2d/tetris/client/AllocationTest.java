@@ -0,0 +1,85 @@
+/*
+ * Copyright 2009 Hao Nguyen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwt.g2d.tetris.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Test;
+
+/**
+ * Checks that the steady-state game loop allocates nothing: plays a warm-up
+ * and then {@link #PIECES} measured headless pieces (gravity ticks, bot 
+ * moves, locking, clearing, level changes and restarting lost games) on a 
+ * single game, in windows none of which may allocate a single byte. A loop
+ * that only allocates once in a while, on a level change or a restart, thus
+ * fails as well.
+ * 
+ * This covers the {@link TetrisGame} that Tetris.update drives, not 
+ * Tetris.update itself nor the rendering, which need a browser.
+ */
+public class AllocationTest {
+	private static final int STARTING_LEVEL = 10;
+	private static final int FRAMES_PER_PIECE = 30;
+	private static final int WARMUP_PIECES = 20000, PIECES = 100000, 
+			WINDOW_PIECES = 10000;
+	
+	private final TetrisGame game = new TetrisGame(STARTING_LEVEL, 
+			new SeededRandom(1));
+	private final Bot bot = new Bot(new Evaluator());
+	
+	@Test
+	public void steadyStateLoopDoesNotAllocate() {
+		com.sun.management.ThreadMXBean threads = 
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if (!threads.isThreadAllocatedMemorySupported()) {
+			fail("This JVM cannot measure the memory allocated by a thread");
+		}
+		threads.setThreadAllocatedMemoryEnabled(true);
+		long threadId = Thread.currentThread().getId();
+		
+		play(WARMUP_PIECES);
+		// The first calls of the bean allocate on this thread.
+		threads.getThreadAllocatedBytes(threadId);
+		threads.getThreadAllocatedBytes(threadId);
+		// The compiler runs on its own threads, so nothing is tolerated.
+		for (int played = 0; played < PIECES; played += WINDOW_PIECES) {
+			long before = threads.getThreadAllocatedBytes(threadId);
+			play(WINDOW_PIECES);
+			long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+			assertEquals("Bytes allocated for pieces " + played + " to " 
+					+ (played + WINDOW_PIECES), 0, allocated);
+		}
+	}
+	
+	/**
+	 * Plays the given number of pieces.
+	 */
+	private void play(int pieces) {
+		for (int i = 0; i < pieces; i++) {
+			if (game.isGameOver()) {
+				game.reset();
+			}
+			for (int frame = 0; (frame < FRAMES_PER_PIECE 
+					|| game.getCurrentPiece() == null) && !game.isGameOver(); frame++) {
+				game.update();
+			}
+			bot.play(game);
+		}
+	}
+}
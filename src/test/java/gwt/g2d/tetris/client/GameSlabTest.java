@@ -0,0 +1,73 @@
+/*
+ * Copyright 2009 Hao Nguyen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwt.g2d.tetris.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class GameSlabTest {
+	@Test
+	public void freedIdsAreReused() {
+		GameSlab slab = new GameSlab(3, 20, 10);
+		int a = slab.allocate(), b = slab.allocate(), c = slab.allocate();
+		assertEquals(-1, slab.allocate());
+		slab.free(b);
+		assertFalse(slab.isAllocated(b));
+		assertEquals(b, slab.allocate());
+		assertTrue(slab.isAllocated(a) && slab.isAllocated(b) && slab.isAllocated(c));
+		assertEquals(3, slab.size());
+	}
+	
+	@Test
+	public void doubleFreeIsRejected() {
+		GameSlab slab = new GameSlab(40, 20, 10);
+		int id = 0;
+		for (int i = 0; i < 40; i++) {
+			id = slab.allocate();
+		}
+		slab.free(id);
+		try {
+			slab.free(id);
+			fail("Freed twice");
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+		// The id is handed out once only.
+		assertEquals(id, slab.allocate());
+		assertEquals(-1, slab.allocate());
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void freeingAnUnallocatedIdIsRejected() {
+		GameSlab slab = new GameSlab(4, 20, 10);
+		slab.allocate();
+		slab.free(3);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void freeingAnOutOfRangeIdIsRejected() {
+		new GameSlab(4, 20, 10).free(4);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void freeingANegativeIdIsRejected() {
+		new GameSlab(4, 20, 10).free(-1);
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2009 Hao Nguyen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwt.g2d.tetris.client;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ * Checks that the flood fill of {@link MoveGenerator#generatePlacements} 
+ * finds the same placements as the breadth-first search.
+ */
+public class MoveGeneratorTest {
+	private static final int NUM_ROWS = TetrisGame.DEFAULT_NUM_ROWS;
+	private static final int NUM_COLS = TetrisGame.DEFAULT_NUM_COLS;
+	
+	@Test
+	public void floodFillMatchesTheSearchWithKicks() {
+		checkRandomMatrices(RotationSystem.STANDARD, 1);
+	}
+	
+	@Test
+	public void floodFillMatchesTheSearchWithoutKicks() {
+		checkRandomMatrices(RotationSystem.NONE, 2);
+	}
+	
+	private static void checkRandomMatrices(RotationSystem rotationSystem, 
+			int seed) {
+		Random random = new Random(seed);
+		MoveGenerator generator = new MoveGenerator(NUM_ROWS, NUM_COLS, 
+				rotationSystem);
+		int[] searched = new int[generator.getMaxPlacements()];
+		int[] filled = new int[generator.getMaxPlacements()];
+		int[] rows = new int[NUM_ROWS];
+		for (int i = 0; i < 500; i++) {
+			// Ragged stacks with holes and overhangs to tuck and spin under.
+			int height = random.nextInt(NUM_ROWS - 2);
+			for (int r = 0; r < NUM_ROWS; r++) {
+				rows[r] = (r < NUM_ROWS - height) ? 0 
+						: random.nextInt(1 << NUM_COLS) & random.nextInt(1 << NUM_COLS);
+			}
+			for (int d = 0; d < PieceDefinition.getNumPieceDefinitions(); d++) {
+				PieceState piece = PieceDefinition.getPieceDefinition(d).getState(
+						random.nextInt(PieceDefinition.TYPES_PER_PIECE));
+				int row = random.nextInt(3), col = random.nextInt(NUM_COLS - 2);
+				int numSearched = generator.generate(rows, piece, row, col, searched);
+				Set<String> expected = toSet(generator, piece, searched, numSearched);
+				int numFilled = generator.generatePlacements(rows, piece, row, col, 
+						filled);
+				assertEquals(numSearched, numFilled);
+				assertEquals(expected, toSet(generator, piece, filled, numFilled));
+			}
+		}
+	}
+	
+	/**
+	 * Gets the cells covered by each placement.
+	 */
+	private static Set<String> toSet(MoveGenerator generator, PieceState piece,
+			int[] placements, int numPlacements) {
+		Set<String> set = new TreeSet<String>();
+		for (int i = 0; i < numPlacements; i++) {
+			PieceState state = piece.getPieceDefinition().getState(
+					generator.getRotation(placements[i]));
+			StringBuilder cells = new StringBuilder();
+			for (int r = 0; r < Piece.PIECE_SIZE; r++) {
+				for (int c = 0; c < Piece.PIECE_SIZE; c++) {
+					if (state.getBlock(r, c) != null) {
+						cells.append(generator.getRow(placements[i]) + r).append(',')
+								.append(generator.getCol(placements[i]) + c).append(' ');
+					}
+				}
+			}
+			set.add(cells.toString());
+		}
+		return set;
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2009 Hao Nguyen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwt.g2d.tetris.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PlacementSearchTest {
+	private static final int NUM_ROWS = TetrisGame.DEFAULT_NUM_ROWS;
+	private static final int NUM_COLS = TetrisGame.DEFAULT_NUM_COLS;
+	private static final int TOWER_HEIGHT = 4, TOWER_COLS = 6;
+	
+	@Test
+	public void restartEvaluatesTheReachableBestPlacementFirst() {
+		TetrisGame game = createGame(1);
+		PlacementSearch search = new PlacementSearch(new Evaluator(), NUM_ROWS, 
+				NUM_COLS);
+		assertTrue(search.start(game) && search.run());
+		PieceState best = search.getBestPiece();
+		int bestRow = search.getBestRow(), bestCol = search.getBestCol();
+		
+		assertTrue(game.move(1, 0));
+		assertTrue(search.isStartedFor(game));
+		assertFalse(search.isStartedAt(game));
+		assertTrue(search.restart(game));
+		search.step(1);
+		assertTrue(search.hasBestPlacement());
+		assertEquals(bestRow, search.getBestRow());
+		assertEquals(bestCol, search.getBestCol());
+		for (int r = 0; r < Piece.PIECE_SIZE; r++) {
+			assertEquals(best.getRowMask(r), search.getBestPiece().getRowMask(r));
+		}
+	}
+	
+	@Test
+	public void restartOnlySuggestsPlacementsThatAreStillReachable() {
+		TetrisGame game = createGame(4);
+		for (int r = NUM_ROWS - TOWER_HEIGHT; r < NUM_ROWS; r++) {
+			for (int c = 0; c < TOWER_COLS; c++) {
+				game.getMatrix().setBlock(r, c, BlockType.SHAPE_I);
+			}
+		}
+		PlacementSearch search = new PlacementSearch(new Evaluator(), NUM_ROWS, 
+				NUM_COLS);
+		assertTrue(search.start(game) && search.run());
+		PieceState best = search.getBestPiece();
+		int bestRow = search.getBestRow(), bestCol = search.getBestCol();
+		
+		// To the right and down to the floor, from where the piece cannot go
+		// back up.
+		while (game.move(0, 1)) {
+		}
+		while (game.move(1, 0)) {
+		}
+		assertFalse(isReachable(game, best, bestRow, bestCol));
+		assertTrue(search.isStartedFor(game));
+		assertTrue(search.restart(game) && search.run());
+		assertTrue(isReachable(game, search.getBestPiece(), search.getBestRow(), 
+				search.getBestCol()));
+	}
+	
+	private static boolean isReachable(TetrisGame game, PieceState piece, 
+			int row, int col) {
+		TetrisMatrix matrix = new TetrisMatrix(NUM_ROWS, NUM_COLS);
+		matrix.copyFrom(game.getMatrix());
+		matrix.removePiece(game.getCurrentRow(), game.getCurrentCol(), 
+				game.getCurrentPiece());
+		MoveGenerator generator = new MoveGenerator(NUM_ROWS, NUM_COLS, 
+				game.getRotationSystem());
+		int[] placements = new int[generator.getMaxPlacements()];
+		int numPlacements = generator.generate(matrix, game.getCurrentPiece(), 
+				game.getCurrentRow(), game.getCurrentCol(), placements);
+		for (int i = 0; i < numPlacements; i++) {
+			PieceState state = piece.getPieceDefinition().getState(
+					generator.getRotation(placements[i]));
+			if (generator.getRow(placements[i]) == row 
+					&& generator.getCol(placements[i]) == col
+					&& state.getRowMask(0) == piece.getRowMask(0) 
+					&& state.getRowMask(1) == piece.getRowMask(1)
+					&& state.getRowMask(2) == piece.getRowMask(2) 
+					&& state.getRowMask(3) == piece.getRowMask(3)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Creates a game whose first piece has spawned.
+	 */
+	private static TetrisGame createGame(int seed) {
+		TetrisGame game = new TetrisGame(0, new SeededRandom(seed));
+		while (game.getCurrentPiece() == null) {
+			game.update();
+		}
+		return game;
+	}
+}
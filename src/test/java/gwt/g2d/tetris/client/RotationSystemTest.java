@@ -0,0 +1,235 @@
+/*
+ * Copyright 2009 Hao Nguyen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwt.g2d.tetris.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ * Pins well-known kicks of the Super Rotation System. The pieces are given by 
+ * their SRS state and cells rather than by rotation and top-left corner, so 
+ * that the tests do not depend on how the piece definitions are laid out.
+ */
+public class RotationSystemTest {
+	private static final int NUM_ROWS = TetrisGame.DEFAULT_NUM_ROWS;
+	private static final int NUM_COLS = TetrisGame.DEFAULT_NUM_COLS;
+	private static final int STATE_0 = 0, STATE_R = 1, STATE_2 = 2, STATE_L = 3;
+	
+	@Test
+	public void tSpinTripleUsesTheFifthKick() {
+		TetrisMatrix matrix = createMatrix(
+				"XX........",
+				"X.........",
+				"X.XXXXXXXX",
+				"X..XXXXXXX",
+				"X.XXXXXXXX");
+		Placement t = new Placement(matrix, BlockType.SHAPE_T, STATE_0, 
+				cells(15, 2, 16, 1, 16, 2, 16, 3));
+		assertEquals(4, t.rotate(RotationSystem.CLOCKWISE));
+		assertEquals(toSet(cells(17, 1, 18, 1, 18, 2, 19, 1)), toSet(t.getCells()));
+		matrix.setPiece(t.row, t.col, t.state);
+		assertEquals(3, matrix.checkAndClear(NUM_ROWS - 1));
+	}
+	
+	@Test
+	public void mirroredTSpinTripleUsesTheFifthKick() {
+		TetrisMatrix matrix = createMatrix(
+				"........XX",
+				".........X",
+				"XXXXXXXX.X",
+				"XXXXXXX..X",
+				"XXXXXXXX.X");
+		Placement t = new Placement(matrix, BlockType.SHAPE_T, STATE_0, 
+				cells(15, 7, 16, 6, 16, 7, 16, 8));
+		assertEquals(4, t.rotate(RotationSystem.COUNTER_CLOCKWISE));
+		assertEquals(toSet(cells(17, 8, 18, 7, 18, 8, 19, 8)), toSet(t.getCells()));
+		matrix.setPiece(t.row, t.col, t.state);
+		assertEquals(3, matrix.checkAndClear(NUM_ROWS - 1));
+	}
+	
+	@Test
+	public void tKicksRightFirstFromStateTwo() {
+		// The T pointing down under a block turns to state L one column to the
+		// right, where the mirrored 0 -> R kick would move it to the left.
+		TetrisMatrix matrix = createMatrix(
+				"..X.......",
+				"..........",
+				"..........");
+		Placement t = new Placement(matrix, BlockType.SHAPE_T, STATE_2, 
+				cells(18, 1, 18, 2, 18, 3, 19, 2));
+		assertEquals(1, t.rotate(RotationSystem.CLOCKWISE));
+		assertEquals(toSet(cells(17, 3, 18, 2, 18, 3, 19, 3)), toSet(t.getCells()));
+	}
+	
+	@Test
+	public void iKicksOffTheLeftWall() {
+		TetrisMatrix matrix = createMatrix();
+		Placement i = new Placement(matrix, BlockType.SHAPE_I, STATE_R, 
+				cells(5, 0, 6, 0, 7, 0, 8, 0));
+		assertEquals(2, i.rotate(RotationSystem.CLOCKWISE));
+		assertEquals(toSet(cells(7, 0, 7, 1, 7, 2, 7, 3)), toSet(i.getCells()));
+		
+		i = new Placement(matrix, BlockType.SHAPE_I, STATE_R, 
+				cells(5, 0, 6, 0, 7, 0, 8, 0));
+		assertEquals(1, i.rotate(RotationSystem.COUNTER_CLOCKWISE));
+		assertEquals(toSet(cells(6, 0, 6, 1, 6, 2, 6, 3)), toSet(i.getCells()));
+	}
+	
+	@Test
+	public void iKicksOffTheRightWall() {
+		TetrisMatrix matrix = createMatrix();
+		Placement i = new Placement(matrix, BlockType.SHAPE_I, STATE_L, 
+				cells(5, 9, 6, 9, 7, 9, 8, 9));
+		assertEquals(2, i.rotate(RotationSystem.CLOCKWISE));
+		assertEquals(toSet(cells(6, 6, 6, 7, 6, 8, 6, 9)), toSet(i.getCells()));
+	}
+	
+	@Test
+	public void iRotatesAboutTheCenterOfItsBox() {
+		TetrisMatrix matrix = createMatrix();
+		Placement i = new Placement(matrix, BlockType.SHAPE_I, STATE_0, 
+				cells(5, 3, 5, 4, 5, 5, 5, 6));
+		int[][] expected = {
+				cells(4, 5, 5, 5, 6, 5, 7, 5), 
+				cells(6, 3, 6, 4, 6, 5, 6, 6), 
+				cells(4, 4, 5, 4, 6, 4, 7, 4), 
+				cells(5, 3, 5, 4, 5, 5, 5, 6), 
+		};
+		for (int[] cells : expected) {
+			assertEquals(0, i.rotate(RotationSystem.CLOCKWISE));
+			assertEquals(toSet(cells), toSet(i.getCells()));
+		}
+	}
+	
+	@Test
+	public void fourRotationsReturnToTheStart() {
+		TetrisMatrix matrix = createMatrix();
+		for (int d = 0; d < PieceDefinition.getNumPieceDefinitions(); d++) {
+			for (int direction = RotationSystem.CLOCKWISE; 
+					direction <= RotationSystem.COUNTER_CLOCKWISE; direction++) {
+				PieceState start = PieceDefinition.getPieceDefinition(d).getState(0);
+				Placement piece = new Placement(matrix, start, 8, 3);
+				for (int k = 0; k < PieceDefinition.TYPES_PER_PIECE; k++) {
+					assertEquals(0, piece.rotate(direction));
+				}
+				assertTrue(piece.state == start && piece.row == 8 && piece.col == 3);
+			}
+		}
+	}
+	
+	/**
+	 * Creates an empty matrix whose bottom rows are given, with X for the 
+	 * occupied cells.
+	 */
+	private static TetrisMatrix createMatrix(String... rows) {
+		TetrisMatrix matrix = new TetrisMatrix(NUM_ROWS, NUM_COLS);
+		for (int r = 0; r < rows.length; r++) {
+			for (int c = 0; c < NUM_COLS; c++) {
+				if (rows[r].charAt(c) == 'X') {
+					matrix.setBlock(NUM_ROWS - rows.length + r, c, BlockType.SHAPE_O);
+				}
+			}
+		}
+		return matrix;
+	}
+	
+	private static int[] cells(int... rowCols) {
+		return rowCols;
+	}
+	
+	private static Set<String> toSet(int[] rowCols) {
+		Set<String> set = new TreeSet<String>();
+		for (int k = 0; k < rowCols.length; k += 2) {
+			set.add(rowCols[k] + "," + rowCols[k + 1]);
+		}
+		return set;
+	}
+	
+	/**
+	 * A piece in a matrix, rotated with the standard rotation system.
+	 */
+	private static class Placement {
+		private final TetrisMatrix matrix;
+		private PieceState state;
+		private int row, col;
+		
+		Placement(TetrisMatrix matrix, PieceState state, int row, int col) {
+			this.matrix = matrix;
+			this.state = state;
+			this.row = row;
+			this.col = col;
+		}
+		
+		/**
+		 * Finds the piece of the given type in the given SRS state whose cells 
+		 * are the given ones. Rotation 0 of the definitions is SRS state 2.
+		 */
+		Placement(TetrisMatrix matrix, BlockType type, int srsState, int[] cells) {
+			this.matrix = matrix;
+			for (int d = 0; d < PieceDefinition.getNumPieceDefinitions(); d++) {
+				PieceDefinition definition = PieceDefinition.getPieceDefinition(d);
+				if (definition.getBlockType() == type) {
+					state = definition.getState((srsState + 2) 
+							% PieceDefinition.TYPES_PER_PIECE);
+				}
+			}
+			for (row = -Piece.PIECE_SIZE; row < NUM_ROWS; row++) {
+				for (col = -Piece.PIECE_SIZE; col < NUM_COLS; col++) {
+					if (toSet(cells).equals(toSet(getCells()))) {
+						assertTrue(matrix.isValidPiece(row, col, state));
+						return;
+					}
+				}
+			}
+			fail("No " + type + " in state " + srsState + " at " + toSet(cells));
+		}
+		
+		/**
+		 * Rotates the piece, which must succeed.
+		 * 
+		 * @return the index of the kick used.
+		 */
+		int rotate(int direction) {
+			RotationSystem rotationSystem = RotationSystem.STANDARD;
+			int kick = rotationSystem.findKick(matrix, row, col, state, direction);
+			assertTrue("Cannot rotate " + toSet(getCells()), kick >= 0);
+			row += rotationSystem.getKickRow(state, direction, kick);
+			col += rotationSystem.getKickCol(state, direction, kick);
+			state = RotationSystem.rotate(state, direction);
+			return kick;
+		}
+		
+		int[] getCells() {
+			int[] cells = new int[Piece.PIECE_SIZE * 2];
+			int n = 0;
+			for (int r = 0; r < Piece.PIECE_SIZE; r++) {
+				for (int c = 0; c < Piece.PIECE_SIZE; c++) {
+					if (state.getBlock(r, c) != null) {
+						cells[n++] = row + r;
+						cells[n++] = col + c;
+					}
+				}
+			}
+			return cells;
+		}
+	}
+}
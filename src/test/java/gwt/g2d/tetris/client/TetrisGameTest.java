@@ -0,0 +1,100 @@
+/*
+ * Copyright 2009 Hao Nguyen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwt.g2d.tetris.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class TetrisGameTest {
+	private static final int ONE_ROW_LEVELS = 21, TWO_THIRDS_LEVEL = 21, 
+			TWENTY_G_LEVEL = 26;
+	
+	@Test
+	public void fractionalGravityFallsOneRowEveryFewTicks() {
+		for (int level = 0; level < ONE_ROW_LEVELS; level++) {
+			assertEquals(1, TetrisGame.getGravityRows(level));
+			int gravityTicks = TetrisGame.getGravityTicks(level);
+			TetrisGame game = new TetrisGame(level, new SeededRandom(1));
+			int row = 0;
+			for (int tick = 1; tick <= 3 * gravityTicks; tick++) {
+				game.update();
+				int expected = (tick % gravityTicks == 0) ? row + 1 : row;
+				assertEquals("Row at level " + level + ", tick " + tick, 
+						expected, game.getCurrentRow());
+				row = expected;
+			}
+		}
+	}
+	
+	@Test
+	public void threeRowsEveryTwoTicksAlternatesOneAndTwoRows() {
+		assertEquals(3, TetrisGame.getGravityRows(TWO_THIRDS_LEVEL));
+		assertEquals(2, TetrisGame.getGravityTicks(TWO_THIRDS_LEVEL));
+		TetrisGame game = new TetrisGame(TWO_THIRDS_LEVEL, new SeededRandom(1));
+		int row = 0;
+		for (int tick = 1; tick <= 8; tick++) {
+			game.update();
+			assertEquals("Rows fallen on tick " + tick, (tick % 2 == 1) ? 1 : 2, 
+					game.getCurrentRow() - row);
+			row = game.getCurrentRow();
+		}
+	}
+	
+	@Test
+	public void twentyGLandsOnSpawnTickOnTopOfTheStack() {
+		assertEquals(TetrisGame.DEFAULT_NUM_ROWS, 
+				TetrisGame.getGravityRows(TWENTY_G_LEVEL));
+		assertEquals(1, TetrisGame.getGravityTicks(TWENTY_G_LEVEL));
+		for (int seed = 0; seed < 20; seed++) {
+			TetrisGame game = new TetrisGame(TWENTY_G_LEVEL, new SeededRandom(seed));
+			// A shelf with empty rows below, which the piece must not fall through.
+			int shelfRow = 10;
+			for (int col = 1; col < TetrisGame.DEFAULT_NUM_COLS; col++) {
+				game.getMatrix().setBlock(shelfRow, col, BlockType.SHAPE_O);
+			}
+			game.update();
+			PieceState piece = game.getCurrentPiece();
+			assertNotNull(piece);
+			assertEquals("Bottom row of the piece for seed " + seed, shelfRow - 1, 
+					game.getCurrentRow() + getBottom(piece));
+			
+			// Landed: the next tick locks it where it is.
+			int row = game.getCurrentRow(), col = game.getCurrentCol();
+			game.update();
+			assertNull(game.getCurrentPiece());
+			for (int r = 0; r < Piece.PIECE_SIZE; r++) {
+				for (int c = 0; c < Piece.PIECE_SIZE; c++) {
+					if (piece.getBlock(r, c) != null) {
+						assertNotNull(game.getMatrix().getBlock(row + r, col + c));
+					}
+				}
+			}
+		}
+	}
+	
+	private static int getBottom(PieceState piece) {
+		int bottom = -1;
+		for (int r = 0; r < Piece.PIECE_SIZE; r++) {
+			if (piece.getRowMask(r) != 0) {
+				bottom = r;
+			}
+		}
+		return bottom;
+	}
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright 2009 Hao Nguyen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwt.g2d.tetris.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the top row and the row bitmasks, which let the matrix skip its 
+ * empty rows, against the blocks themselves and against a plain grid.
+ */
+public class TetrisMatrixTest {
+	private static final int NUM_ROWS = TetrisGame.DEFAULT_NUM_ROWS;
+	private static final int NUM_COLS = TetrisGame.DEFAULT_NUM_COLS;
+	
+	@Test
+	public void topRowFollowsSetAndRemovedBlocks() {
+		TetrisMatrix matrix = new TetrisMatrix(NUM_ROWS, NUM_COLS);
+		assertEquals(NUM_ROWS, matrix.getTopRow());
+		matrix.setBlock(15, 3, BlockType.SHAPE_T);
+		matrix.setBlock(12, 4, BlockType.SHAPE_T);
+		matrix.setBlock(17, 5, BlockType.SHAPE_T);
+		assertEquals(12, matrix.getTopRow());
+		matrix.setBlock(15, 3, null);
+		assertEquals(12, matrix.getTopRow());
+		matrix.setBlock(12, 4, null);
+		assertEquals(17, matrix.getTopRow());
+		matrix.setBlock(17, 5, null);
+		assertEquals(NUM_ROWS, matrix.getTopRow());
+	}
+	
+	@Test
+	public void topRowFollowsRemovedPieces() {
+		TetrisMatrix matrix = new TetrisMatrix(NUM_ROWS, NUM_COLS);
+		PieceState piece = PieceDefinition.getPieceDefinition(0).getState(0);
+		matrix.setPiece(14, 2, piece);
+		int top = matrix.getTopRow();
+		matrix.setPiece(10, 5, piece);
+		assertTrue(matrix.getTopRow() < top);
+		matrix.removePiece(10, 5, piece);
+		assertEquals(top, matrix.getTopRow());
+		matrix.removePiece(14, 2, piece);
+		assertEquals(NUM_ROWS, matrix.getTopRow());
+	}
+	
+	@Test
+	public void clearsSeveralRowsAtOnce() {
+		TetrisMatrix matrix = createMatrix(
+				"....X.....",
+				"XXXXXXXXXX",
+				"XXXXXXXXXX",
+				"XXXXXXXXXX",
+				"XXXXXXXXXX");
+		assertEquals(4, matrix.checkAndClear(NUM_ROWS - 1));
+		assertMatrix(matrix, "....X.....");
+		assertEquals(NUM_ROWS - 1, matrix.getTopRow());
+	}
+	
+	@Test
+	public void clearsRowsThatAreNotNextToEachOther() {
+		TetrisMatrix matrix = createMatrix(
+				".X........",
+				"XXXXXXXXXX",
+				"XX.XXXXXXX",
+				"XXXXXXXXXX",
+				"XXX.XXXXXX");
+		assertEquals(2, matrix.checkAndClear(NUM_ROWS - 1));
+		assertMatrix(matrix, 
+				".X........", 
+				"XX.XXXXXXX", 
+				"XXX.XXXXXX");
+		assertEquals(NUM_ROWS - 3, matrix.getTopRow());
+	}
+	
+	@Test
+	public void clearingEveryRowEmptiesTheMatrix() {
+		TetrisMatrix matrix = createMatrix(
+				"XXXXXXXXXX",
+				"XXXXXXXXXX");
+		assertEquals(2, matrix.checkAndClear(NUM_ROWS - 1));
+		assertMatrix(matrix);
+		assertEquals(NUM_ROWS, matrix.getTopRow());
+	}
+	
+	@Test
+	public void copyFromALowerMatrixEmptiesTheRowsAbove() {
+		TetrisMatrix matrix = createMatrix(
+				"X.........",
+				"..........",
+				"..........",
+				"........XX");
+		TetrisMatrix other = createMatrix(".....X....");
+		matrix.copyFrom(other);
+		assertMatrix(matrix, ".....X....");
+		assertEquals(NUM_ROWS - 1, matrix.getTopRow());
+		
+		// And back the other way.
+		other.copyFrom(createMatrix("X.........", "..........", "........XX"));
+		assertMatrix(other, "X.........", "..........", "........XX");
+		assertEquals(NUM_ROWS - 3, other.getTopRow());
+	}
+	
+	@Test
+	public void clearEmptiesEveryRow() {
+		TetrisMatrix matrix = createMatrix(
+				"...X......",
+				"..........",
+				"XX.XXXXXXX");
+		matrix.clear();
+		assertMatrix(matrix);
+		assertEquals(NUM_ROWS, matrix.getTopRow());
+		matrix.setBlock(NUM_ROWS - 1, 0, BlockType.SHAPE_O);
+		assertMatrix(matrix, "X.........");
+	}
+	
+	@Test
+	public void matchesAPlainGrid() {
+		Random random = new Random(1);
+		TetrisMatrix matrix = new TetrisMatrix(NUM_ROWS, NUM_COLS);
+		TetrisMatrix other = new TetrisMatrix(NUM_ROWS, NUM_COLS);
+		BlockType[][] grid = new BlockType[NUM_ROWS][NUM_COLS];
+		BlockType[][] otherGrid = new BlockType[NUM_ROWS][NUM_COLS];
+		for (int step = 0; step < 20000; step++) {
+			int op = random.nextInt(20);
+			if (op == 0) {
+				matrix.clear();
+				grid = new BlockType[NUM_ROWS][NUM_COLS];
+			} else if (op == 1) {
+				matrix.copyFrom(other);
+				grid = copy(otherGrid);
+			} else if (op == 2) {
+				other.copyFrom(matrix);
+				otherGrid = copy(grid);
+			} else if (op < 8) {
+				// Blocks low in the matrix fill rows, higher up they move the top.
+				int row = NUM_ROWS - 1 - Math.min(random.nextInt(NUM_ROWS), 
+						random.nextInt(6));
+				int col = random.nextInt(NUM_COLS);
+				BlockType type = (op < 6) ? BlockType.SHAPE_L : null;
+				matrix.setBlock(row, col, type);
+				grid[row][col] = type;
+			} else {
+				PieceState piece = PieceDefinition.getPieceDefinition(
+						random.nextInt(PieceDefinition.getNumPieceDefinitions()))
+						.getState(random.nextInt(PieceDefinition.TYPES_PER_PIECE));
+				int row = random.nextInt(NUM_ROWS) - 1;
+				int col = random.nextInt(NUM_COLS) - 1;
+				if (!matrix.isValidPiece(row, col, piece)) {
+					continue;
+				}
+				matrix.setPiece(row, col, piece);
+				for (int r = 0; r < Piece.PIECE_SIZE; r++) {
+					for (int c = 0; c < Piece.PIECE_SIZE; c++) {
+						if (piece.getBlock(r, c) != null) {
+							grid[row + r][col + c] = piece.getBlock(r, c);
+						}
+					}
+				}
+				int bottom = row + Piece.PIECE_SIZE - 1;
+				assertEquals(clear(grid, bottom), matrix.checkAndClear(bottom));
+			}
+			assertGrid(grid, matrix);
+		}
+	}
+	
+	@Test
+	public void landingRowMatchesAStepByStepDrop() {
+		Random random = new Random(2);
+		for (int i = 0; i < 200; i++) {
+			TetrisMatrix matrix = new TetrisMatrix(NUM_ROWS, NUM_COLS);
+			for (int n = random.nextInt(60); n > 0; n--) {
+				int row = NUM_ROWS - 1 - random.nextInt(random.nextInt(NUM_ROWS) + 1);
+				matrix.setBlock(row, random.nextInt(NUM_COLS), BlockType.SHAPE_Z);
+			}
+			for (int d = 0; d < PieceDefinition.getNumPieceDefinitions(); d++) {
+				for (int rotation = 0; rotation < PieceDefinition.TYPES_PER_PIECE; 
+						rotation++) {
+					PieceState piece = PieceDefinition.getPieceDefinition(d)
+							.getState(rotation);
+					for (int row = -1; row < NUM_ROWS; row++) {
+						for (int col = -1; col < NUM_COLS; col++) {
+							if (!matrix.isValidPiece(row, col, piece)) {
+								continue;
+							}
+							int landingRow = row;
+							while (matrix.isValidPiece(landingRow + 1, col, piece)) {
+								landingRow++;
+							}
+							assertEquals(landingRow, matrix.getLandingRow(row, col, piece));
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void positionsMatchTheFittingPieces() {
+		Random random = new Random(3);
+		int pad = TetrisMatrix.POSITION_PAD;
+		int[] validCols = new int[NUM_ROWS + pad];
+		int[] landingRows = new int[NUM_COLS + pad];
+		for (int i = 0; i < 200; i++) {
+			TetrisMatrix matrix = new TetrisMatrix(NUM_ROWS, NUM_COLS);
+			for (int n = random.nextInt(80); n > 0; n--) {
+				int row = NUM_ROWS - 1 - random.nextInt(random.nextInt(NUM_ROWS) + 1);
+				matrix.setBlock(row, random.nextInt(NUM_COLS), BlockType.SHAPE_S);
+			}
+			int[] rowMasks = new int[NUM_ROWS];
+			for (int r = 0; r < NUM_ROWS; r++) {
+				rowMasks[r] = matrix.getRowMask(r);
+			}
+			int startRow = random.nextInt(4) - 1;
+			for (int d = 0; d < PieceDefinition.getNumPieceDefinitions(); d++) {
+				for (int rotation = 0; rotation < PieceDefinition.TYPES_PER_PIECE; 
+						rotation++) {
+					PieceState piece = PieceDefinition.getPieceDefinition(d)
+							.getState(rotation);
+					matrix.findPositions(piece, startRow, validCols, landingRows);
+					for (int row = -pad; row < NUM_ROWS; row++) {
+						for (int col = -pad; col < NUM_COLS; col++) {
+							assertEquals(matrix.isValidPiece(row, col, piece), 
+									(validCols[row + pad] & (1 << (col + pad))) != 0);
+						}
+					}
+					int[] staticCols = new int[NUM_ROWS + pad];
+					TetrisMatrix.findValidPositions(rowMasks, NUM_ROWS, NUM_COLS, piece, 
+							staticCols);
+					for (int row = 0; row < NUM_ROWS + pad; row++) {
+						assertEquals(validCols[row], staticCols[row]);
+					}
+					for (int col = -pad; col < NUM_COLS; col++) {
+						int landingRow = TetrisMatrix.NO_POSITION;
+						if (matrix.isValidPiece(startRow, col, piece)) {
+							landingRow = startRow;
+							while (matrix.isValidPiece(landingRow + 1, col, piece)) {
+								landingRow++;
+							}
+						}
+						assertEquals(landingRow, landingRows[col + pad]);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Clears the full rows of a grid from the given row up to 
+	 * {@link Piece#PIECE_SIZE} rows above it, as checkAndClear does.
+	 */
+	private static int clear(BlockType[][] grid, int row) {
+		row = Math.min(row, NUM_ROWS - 1);
+		int cleared = 0;
+		for (int r = row; r >= Math.max(0, row - Piece.PIECE_SIZE); r--) {
+			boolean full = true;
+			for (int c = 0; c < NUM_COLS; c++) {
+				full &= grid[r][c] != null;
+			}
+			if (full) {
+				for (int above = r; above > 0; above--) {
+					grid[above] = grid[above - 1];
+				}
+				grid[0] = new BlockType[NUM_COLS];
+				// The row moved down into r is checked again.
+				r++;
+				row--;
+				cleared++;
+			}
+		}
+		return cleared;
+	}
+	
+	private static BlockType[][] copy(BlockType[][] grid) {
+		BlockType[][] result = new BlockType[grid.length][];
+		for (int r = 0; r < grid.length; r++) {
+			result[r] = grid[r].clone();
+		}
+		return result;
+	}
+	
+	private static void assertGrid(BlockType[][] grid, TetrisMatrix matrix) {
+		int topRow = NUM_ROWS;
+		for (int r = NUM_ROWS - 1; r >= 0; r--) {
+			int mask = 0;
+			for (int c = 0; c < NUM_COLS; c++) {
+				assertEquals(grid[r][c], matrix.getBlock(r, c));
+				if (grid[r][c] != null) {
+					mask |= 1 << c;
+					topRow = r;
+				}
+			}
+			assertEquals(mask, matrix.getRowMask(r));
+		}
+		assertEquals(topRow, matrix.getTopRow());
+	}
+	
+	/**
+	 * Creates a matrix whose bottom rows are the given ones, X marking the 
+	 * occupied cells.
+	 */
+	private static TetrisMatrix createMatrix(String... rows) {
+		TetrisMatrix matrix = new TetrisMatrix(NUM_ROWS, NUM_COLS);
+		for (int i = 0; i < rows.length; i++) {
+			for (int c = 0; c < NUM_COLS; c++) {
+				if (rows[i].charAt(c) == 'X') {
+					matrix.setBlock(NUM_ROWS - rows.length + i, c, BlockType.SHAPE_I);
+				}
+			}
+		}
+		return matrix;
+	}
+	
+	/**
+	 * Asserts that the bottom rows of the matrix are the given ones, and that
+	 * the rows above them are empty.
+	 */
+	private static void assertMatrix(TetrisMatrix matrix, String... rows) {
+		for (int r = 0; r < NUM_ROWS; r++) {
+			int i = r - (NUM_ROWS - rows.length);
+			for (int c = 0; c < NUM_COLS; c++) {
+				boolean occupied = i >= 0 && rows[i].charAt(c) == 'X';
+				assertEquals("row " + r + ", col " + c, occupied, 
+						matrix.getBlock(r, c) != null);
+			}
+		}
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2009 Hao Nguyen
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package gwt.g2d.tetris.tools;
+
+import static org.junit.Assert.assertEquals;
+
+import gwt.g2d.tetris.client.RotationSystem;
+
+import org.junit.Test;
+
+/**
+ * Pins the perft counts of fixed seeds, so that a change to the move 
+ * generator or to the kick tables that changes the reachable placements is
+ * noticed.
+ */
+public class PerftTest {
+	@Test
+	public void standardSeed1() {
+		Perft perft = new Perft(1, 3, RotationSystem.STANDARD);
+		assertEquals(17, perft.perft(1));
+		assertEquals(289, perft.perft(2));
+		assertEquals(10178, perft.perft(3));
+	}
+	
+	@Test
+	public void standardSeed2() {
+		assertEquals(1187, new Perft(2, 2, RotationSystem.STANDARD).perft(2));
+	}
+	
+	@Test
+	public void noneSeed1() {
+		Perft perft = new Perft(1, 3, RotationSystem.NONE);
+		assertEquals(17, perft.perft(1));
+		assertEquals(289, perft.perft(2));
+		assertEquals(10175, perft.perft(3));
+	}
+	
+	@Test
+	public void noneSeed2() {
+		assertEquals(1186, new Perft(2, 2, RotationSystem.NONE).perft(2));
+	}
+	
+	@Test
+	public void matchesTheReferenceSearch() {
+		for (int seed = 1; seed <= 2; seed++) {
+			Perft standard = new Perft(seed, 2, RotationSystem.STANDARD);
+			assertEquals(standard.referencePerft(2), standard.perft(2));
+			Perft none = new Perft(seed, 2, RotationSystem.NONE);
+			assertEquals(none.referencePerft(2), none.perft(2));
+		}
+	}
+}